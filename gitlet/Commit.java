@@ -1,17 +1,48 @@
 package gitlet;
 
-import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 
 import static gitlet.Utils.*;
 
 /**
  * Represents a gitlet commit object.
+ *
+ * Commits are stored in a compact binary form: the magic "GLTC", a version
+ * byte, the number of parents, the timestamp in milliseconds and the length
+ * as a fixed header, then each parent ID as 20 bytes, the message as a
+ * length-prefixed UTF-8 string, and the 20-byte ID of the commit's Tree.
+ * The ID of a commit is the SHA-1 of that form. Version 1 commits list their
+ * files inline instead of the tree, each a length-prefixed name followed by
+ * its 20-byte blob ID. Commits written by earlier versions with Java
+ * serialization are still read, and keep the IDs they were stored under.
+ *
  * @author Daniel Zhao
  */
 public class Commit implements Serializable {
+    /**
+     * Pinned so that commits serialized by earlier versions can still be read.
+     */
+    private static final long serialVersionUID = 3104013342324237575L;
+    /**
+     * Magic bytes starting every encoded commit.
+     */
+    private static final byte[] MAGIC = "GLTC".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Current version of the encoding.
+     */
+    private static final int VERSION = 2;
+    /**
+     * Format of commit dates in logs. Unlike a SimpleDateFormat, it may be
+     * shared by every commit and thread. Dates are shown in the time zone of
+     * the command, which a daemon takes from each client.
+     */
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z");
     /**
      * List all instance variables of the Commit class here with a useful
      * comment above them describing what that variable represents and how that
@@ -35,9 +66,14 @@ public class Commit implements Serializable {
      */
     private String ID;
     /**
-     * Blobs in the commit. The key will be name of the file, and the value will be the SHA-1 Hash
+     * Blobs in the commit. The key will be name of the file, and the value will be the SHA-1 Hash.
+     * Read from the tree on first use.
      */
     private TreeMap<String, String> blobs;
+    /**
+     * ID of the tree holding the blobs, or null until it has been written.
+     */
+    private String treeID;
     /**
      * Branch the commit is in
      */
@@ -46,6 +82,20 @@ public class Commit implements Serializable {
      * Length of initial commit to this commit
      */
     private int length;
+    /**
+     * Encoded form this commit was decoded from, kept until its file table
+     * is first needed, and the offset of that table within it.
+     */
+    private transient byte[] encoded;
+    private transient int filesOffset;
+    /**
+     * Files added (or, mapped to null, removed) since TREEID was set.
+     */
+    private transient TreeMap<String, String> edits;
+    /**
+     * Object store the tree of this commit is read from and written to.
+     */
+    private transient ObjectStore store;
 
     /**
      * Called whenever initializes repo
@@ -54,27 +104,39 @@ public class Commit implements Serializable {
         this.message = "initial commit";
         this.date = new Date(0);
         this.parentID = null;
-        this.ID = sha1(serialize(this));
         this.blobs = new TreeMap<>();
         this.branch = "master";
         this.length = 0;
     }
 
-    public Commit(String message, String parentID, TreeMap<String, String> blobs,
+    /**
+     * A new commit holding the files of tree TREEID, which further files
+     * may be added to or removed from until it is saved.
+     */
+    public Commit(String message, String parentID, String treeID,
                   String branch, int length) {
         this.message = message;
         this.date = new Date();
         this.parentID = parentID;
-        this.ID = sha1(serialize(this));
-        this.blobs = blobs;
+        this.treeID = treeID;
         this.branch = branch;
         this.length = length;
     }
 
+    /**
+     * A commit named ID, whose other fields are filled in by decode.
+     */
+    Commit(String id) {
+        this.ID = id;
+    }
+
     /**
      * Returns SHA-1 Hash of this commit.
      */
     public String getID() {
+        if (ID == null) {
+            ID = sha1(encode());
+        }
         return ID;
     }
 
@@ -89,7 +151,7 @@ public class Commit implements Serializable {
      * Returns blobs within commit.
      */
     public TreeMap<String, String> getBlobs() {
-        return blobs;
+        return files();
     }
 
     /**
@@ -110,47 +172,206 @@ public class Commit implements Serializable {
      * Returns formatted date string
      */
     public String getDateString() {
-        SimpleDateFormat formatter = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z");
-        return formatter.format(date);
+        return DATE_FORMAT.withZone(zone()).format(date.toInstant());
     }
 
     /**
      * Adds a file to the blob map, with its file name and hash code
      */
     public void addToBlob(String fileName, String hashCode) {
-        this.blobs.put(fileName, hashCode);
+        edit(fileName, hashCode);
     }
 
     /**
      * Removes file from blob map
      */
     public void removeFromBlob(String fileName) {
-        this.blobs.remove(fileName);
+        edit(fileName, null);
     }
 
     /**
      * Returns whether file is in blob
      */
     public boolean fileinBlob(String fileName) {
-        return this.blobs.containsKey(fileName);
+        return files().containsKey(fileName);
+    }
+
+    /**
+     * Returns length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the second parent ID, or null if this is not a merge commit.
+     */
+    String secondParentID() {
+        return null;
     }
 
     /**
-     * Returns the file from a blob based on the file name given
+     * Returns the ID of the tree holding this commit's files, writing the
+     * tree first if files were added or removed since it was last written.
      */
-    public File getFile(String fileName) {
-        String fileHash = this.blobs.get(fileName);
-        if (fileHash == null) {
-            return null;
+    public String getTreeID() {
+        if (treeID == null) {
+            treeID = Tree.write(store(), files());
+        } else if (edits != null) {
+            treeID = Tree.update(store(), treeID, edits);
         }
-        return join(Repository.BLOBS_PATH, fileHash);
+        edits = null;
+        return treeID;
     }
 
     /**
-     * Returns length
+     * Returns the ID of this commit's tree if it has one already, without
+     * writing one. Commits from before trees list their files directly.
      */
-    public int getLength() {
-        return length;
+    String writtenTreeID() {
+        return edits == null ? treeID : null;
+    }
+
+    /**
+     * Returns the object store this commit's tree lives in.
+     */
+    private ObjectStore store() {
+        return store != null ? store : Repository.OBJECTS;
+    }
+
+    /**
+     * Records that file NAME now has blob HASHCODE, or is removed if null.
+     */
+    private void edit(String name, String hashCode) {
+        if (blobs != null || treeID == null) {
+            if (hashCode == null) {
+                files().remove(name);
+            } else {
+                files().put(name, hashCode);
+            }
+        }
+        if (treeID != null) {
+            if (edits == null) {
+                edits = new TreeMap<>();
+            }
+            edits.put(name, hashCode);
+        }
+        this.ID = null;
+    }
+
+    /**
+     * Returns the file table, reading it on first use.
+     */
+    private TreeMap<String, String> files() {
+        if (blobs == null && treeID != null) {
+            blobs = Tree.read(store(), treeID);
+            if (edits != null) {
+                for (Map.Entry<String, String> e : edits.entrySet()) {
+                    if (e.getValue() == null) {
+                        blobs.remove(e.getKey());
+                    } else {
+                        blobs.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        } else if (blobs == null && encoded != null) {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            in.position(filesOffset);
+            TreeMap<String, String> result = new TreeMap<>();
+            int count = in.getInt();
+            for (int i = 0; i < count; i += 1) {
+                String name = readString(in, in.getShort() & 0xffff);
+                result.put(name, readID(in));
+            }
+            blobs = result;
+            encoded = null;
+        }
+        return blobs;
+    }
+
+    /**
+     * Returns the binary form of this commit.
+     */
+    byte[] encode() {
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        String tree = getTreeID();
+        int size = MAGIC.length + 2 + 8 + 4 + 4 + msg.length + Pack.ID_BYTES;
+        String parent2ID = secondParentID();
+        int parents = parentID == null ? 0 : parent2ID == null ? 1 : 2;
+        size += parents * Pack.ID_BYTES;
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC).put((byte) VERSION).put((byte) parents);
+        out.putLong(date.getTime()).putInt(length);
+        if (parents > 0) {
+            out.put(Pack.fromHex(parentID));
+        }
+        if (parents > 1) {
+            out.put(Pack.fromHex(parent2ID));
+        }
+        out.putInt(msg.length).put(msg);
+        out.put(Pack.fromHex(tree));
+        return out.array();
+    }
+
+    /**
+     * Returns whether DATA is a commit in the binary form rather than one
+     * written with Java serialization.
+     */
+    static boolean isEncoded(byte[] data) {
+        return data.length >= MAGIC.length
+                && Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Returns the commit named ID stored as DATA in STORE, in either form.
+     */
+    static Commit decode(ObjectStore store, String id, byte[] data) {
+        if (!isEncoded(data)) {
+            Commit c = deserialize(data, Commit.class);
+            c.store = store;
+            return c;
+        }
+        ByteBuffer in = ByteBuffer.wrap(data);
+        in.position(MAGIC.length);
+        int version = in.get();
+        if (version > VERSION) {
+            throw error("Commit %s was written by a newer version of Gitlet.", id);
+        }
+        int parents = in.get();
+        long time = in.getLong();
+        int length = in.getInt();
+        String parentID = parents > 0 ? readID(in) : null;
+        Commit c = parents > 1 ? new MergeCommit(id, readID(in)) : new Commit(id);
+        c.parentID = parentID;
+        c.date = new Date(time);
+        c.length = length;
+        c.message = readString(in, in.getInt());
+        c.store = store;
+        if (version >= 2) {
+            c.treeID = readID(in);
+        } else {
+            c.encoded = data;
+            c.filesOffset = in.position();
+        }
+        return c;
+    }
+
+    /**
+     * Reads a 20-byte ID from IN and returns it in hexadecimal.
+     */
+    private static String readID(ByteBuffer in) {
+        String id = Pack.toHex(in.array(), in.position());
+        in.position(in.position() + Pack.ID_BYTES);
+        return id;
+    }
+
+    /**
+     * Reads a UTF-8 string of N bytes from IN.
+     */
+    private static String readString(ByteBuffer in, int n) {
+        String result = new String(in.array(), in.position(), n, StandardCharsets.UTF_8);
+        in.position(in.position() + n);
+        return result;
     }
 
 }
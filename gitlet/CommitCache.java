@@ -0,0 +1,93 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recently used commits of one object store, decoded, so that a
+ * command reading the same commit several times reads and decodes it once.
+ * Commits keep the file table they read on first use, so their blob maps are
+ * cached along with them. Commits are never changed once written, so cached
+ * ones never go stale.
+ *
+ * A cache may be used from several threads at once. Commits are read and
+ * decoded outside its lock.
+ *
+ * @author Daniel Zhao
+ */
+class CommitCache {
+
+    /**
+     * The store commits are read from.
+     */
+    private final ObjectStore store;
+    /**
+     * Cached commits by ID, least recently used first.
+     */
+    private final LinkedHashMap<String, Commit> commits;
+    /**
+     * Number of reads answered from the cache, and from the store.
+     */
+    private long hits;
+    private long misses;
+
+    /**
+     * A cache of at most CAPACITY commits of STORE.
+     */
+    CommitCache(ObjectStore store, int capacity) {
+        this.store = store;
+        commits = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns commit ID, or null if there is no such commit.
+     */
+    Commit get(String id) {
+        if (id == null) {
+            return null;
+        }
+        synchronized (this) {
+            Commit c = commits.get(id);
+            if (c != null) {
+                hits += 1;
+                return c;
+            }
+            misses += 1;
+        }
+        byte[] data = store.readCommit(id);
+        if (data == null) {
+            return null;
+        }
+        Commit c = Commit.decode(store, id, data);
+        synchronized (this) {
+            Commit other = commits.putIfAbsent(id, c);
+            return other != null ? other : c;
+        }
+    }
+
+    /**
+     * Adds commit C, which has just been written to the store.
+     */
+    synchronized void put(Commit c) {
+        commits.put(c.getID(), c);
+    }
+
+    /**
+     * Returns the number of reads answered from the cache.
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of reads that went to the store.
+     */
+    synchronized long misses() {
+        return misses;
+    }
+}
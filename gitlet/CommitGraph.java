@@ -0,0 +1,476 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commit graph of one Gitlet repository: for each commit, its parents,
+ * its generation number and its timestamp, so that history can be walked
+ * without reading and decoding the commits themselves. The generation of a
+ * root commit is 1 and that of any other commit is one more than the largest
+ * generation of its parents, that is, one more than its length.
+ *
+ * The graph is kept in two files. The commit-graph file is the magic "GLCG",
+ * a version number, a 256-entry fanout table (entry i counts the commits
+ * whose first ID byte is at most i), the sorted 20-byte commit IDs, and then
+ * for each commit in the same order the positions of its two parents (-1 for
+ * none) as ints, its generation as an int and its time in milliseconds as a
+ * long. It is memory-mapped when read. Commits added since it was written
+ * are appended to the commit-graph-tail file, each as its ID, the IDs of its
+ * two parents (zeros for none), its generation and its time; once the tail
+ * holds TAIL_LIMIT commits, both files are merged into a new commit-graph.
+ *
+ * A commit missing from both files, such as one written by an earlier
+ * version, is read from the object store once and added to the graph.
+ *
+ * @author Daniel Zhao
+ */
+class CommitGraph {
+
+    private static final byte[] MAGIC = "GLCG".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    /**
+     * Size of the header before the commit IDs.
+     */
+    private static final int HEADER = MAGIC.length + 4 + 256 * 4;
+    /**
+     * Size of the parents, generation and time of one commit in the
+     * commit-graph file.
+     */
+    private static final int DATA_BYTES = 4 + 4 + 4 + 8;
+    /**
+     * Size of one commit in the tail file.
+     */
+    private static final int TAIL_BYTES = 3 * Pack.ID_BYTES + 4 + 8;
+    /**
+     * Number of tail commits at which the tail is merged into the graph.
+     */
+    private static final int TAIL_LIMIT = 512;
+    private static final byte[] NO_ID = new byte[Pack.ID_BYTES];
+    /**
+     * Paint of commits reachable from either side of a merge base search.
+     */
+    private static final int FROM_A = 1;
+    private static final int FROM_B = 2;
+    /**
+     * Order commits are visited in by mergeBase: highest generation first,
+     * then latest time, then smallest ID.
+     */
+    private static final Comparator<Node> WALK_ORDER =
+            Comparator.<Node>comparingInt(n -> -n.generation)
+                    .thenComparingLong(n -> -n.time)
+                    .thenComparing(n -> n.id);
+
+    /**
+     * The commit-graph file.
+     */
+    private final File file;
+    /**
+     * The commit-graph-tail file.
+     */
+    private final File tailFile;
+    /**
+     * Store the commits of this graph are read from when missing.
+     */
+    private final ObjectStore store;
+    /**
+     * The mapped commit-graph file, or null if there is none. Read on first use.
+     */
+    private ByteBuffer graph;
+    /**
+     * Number of commits in GRAPH.
+     */
+    private int count;
+    /**
+     * Commits of the tail file by ID, read along with GRAPH.
+     */
+    private Map<String, Node> tail;
+    /**
+     * Commits added since the last commit, in the order they were added.
+     */
+    private final Map<String, Node> pending = new LinkedHashMap<>();
+
+    /**
+     * One commit of the graph.
+     */
+    static class Node {
+        final String id;
+        /**
+         * IDs of the first and second parents, or null.
+         */
+        final String parent;
+        final String parent2;
+        final int generation;
+        /**
+         * Commit time in milliseconds.
+         */
+        final long time;
+
+        Node(String id, String parent, String parent2, int generation, long time) {
+            this.id = id;
+            this.parent = parent;
+            this.parent2 = parent2;
+            this.generation = generation;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The commit graph of the repository whose .gitlet directory is ROOT,
+     * whose commits are in STORE.
+     */
+    CommitGraph(File root, ObjectStore store) {
+        file = join(root, "commit-graph");
+        tailFile = join(root, "commit-graph-tail");
+        this.store = store;
+    }
+
+    /**
+     * Returns the graph node of commit ID, or null if there is no such commit.
+     */
+    Node get(String id) {
+        if (id == null) {
+            return null;
+        }
+        Node result = find(id);
+        if (result == null) {
+            byte[] data = store.readCommit(id);
+            if (data == null) {
+                return null;
+            }
+            result = add(Commit.decode(store, id, data));
+        }
+        return result;
+    }
+
+    /**
+     * Adds commit C, which has just been written to the object store, and
+     * returns its node.
+     */
+    Node add(Commit c) {
+        String id = c.getID();
+        Node result = find(id);
+        if (result == null) {
+            String parent2 = c instanceof MergeCommit ? ((MergeCommit) c).getParent2ID() : null;
+            result = new Node(id, c.getParentID(), parent2, c.getLength() + 1,
+                    c.getDate().getTime());
+            pending.put(id, result);
+        }
+        return result;
+    }
+
+    /**
+     * Discards the commits added since the last commit, and forgets the
+     * files read, so that they are read again on next use.
+     */
+    void refresh() {
+        pending.clear();
+        graph = null;
+        count = 0;
+        tail = null;
+    }
+
+    /**
+     * Returns the best common ancestor of commits A and B: the one with the
+     * highest generation, then the latest time, then the smallest ID, so that
+     * criss-cross merges with several candidates always get the same one.
+     *
+     * Commits are visited from the highest generation down, each painted with
+     * whether it is reachable from A, from B or both. A commit's descendants
+     * all have higher generations, so its paint is complete by the time it is
+     * visited, and the first commit visited with both paints is the answer.
+     * Only commits newer than it are visited.
+     */
+    String mergeBase(String a, String b) {
+        Map<String, Integer> paint = new HashMap<>();
+        PriorityQueue<Node> queue = new PriorityQueue<>(WALK_ORDER);
+        paint.put(a, FROM_A);
+        paint.merge(b, FROM_B, (x, y) -> x | y);
+        queue.add(get(a));
+        if (!a.equals(b)) {
+            queue.add(get(b));
+        }
+        while (!queue.isEmpty()) {
+            Node n = queue.poll();
+            int flags = paint.get(n.id);
+            if (flags == (FROM_A | FROM_B)) {
+                return n.id;
+            }
+            for (String parent : new String[] {n.parent, n.parent2}) {
+                if (parent == null) {
+                    continue;
+                }
+                Integer old = paint.get(parent);
+                if (old == null) {
+                    paint.put(parent, flags);
+                    queue.add(get(parent));
+                } else {
+                    paint.put(parent, old | flags);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the commits added since the last commit. They are appended to
+     * the tail file and synced, unless that makes the tail too long, in which
+     * case a new commit-graph file holding every commit replaces both files.
+     * The tail is only ever appended whole commits; a partial one left by a
+     * crash is ignored when read.
+     */
+    void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        load();
+        if (graph == null || tail.size() + pending.size() >= TAIL_LIMIT) {
+            rewrite();
+        } else {
+            ByteBuffer out = ByteBuffer.allocate(pending.size() * TAIL_BYTES);
+            for (Node n : pending.values()) {
+                out.put(Pack.fromHex(n.id)).put(binaryID(n.parent)).put(binaryID(n.parent2));
+                out.putInt(n.generation).putLong(n.time);
+            }
+            // Whatever a crash left past the last whole entry is dropped first.
+            long end = tailFile.length() / TAIL_BYTES * TAIL_BYTES;
+            try (FileChannel ch = FileChannel.open(tailFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ch.truncate(end);
+                ch.position(end);
+                ch.write(out.flip());
+                ch.force(true);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            syncDirectories(List.of(tailFile));
+            tail.putAll(pending);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Returns the node of commit ID if it is in the graph already, and
+     * otherwise null.
+     */
+    private Node find(String id) {
+        if (id.length() != 2 * Pack.ID_BYTES) {
+            return null;
+        }
+        Node result = pending.get(id);
+        if (result != null) {
+            return result;
+        }
+        load();
+        result = tail.get(id);
+        if (result != null) {
+            return result;
+        }
+        int k = position(Pack.fromHex(id));
+        return k < 0 ? null : node(k);
+    }
+
+    /**
+     * Returns the position of binary commit ID in the commit-graph file, or
+     * -1 if it is not there.
+     */
+    private int position(byte[] id) {
+        if (graph == null || id.length != Pack.ID_BYTES) {
+            return -1;
+        }
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : graph.getInt(MAGIC.length + 4 + (first - 1) * 4);
+        int hi = graph.getInt(MAGIC.length + 4 + first * 4) - 1;
+        byte[] probe = new byte[Pack.ID_BYTES];
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            graph.get(HEADER + mid * Pack.ID_BYTES, probe);
+            int cmp = Arrays.compareUnsigned(probe, id);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the node at position K of the commit-graph file.
+     */
+    private Node node(int k) {
+        int data = HEADER + count * Pack.ID_BYTES + k * DATA_BYTES;
+        return new Node(idAt(k), idAt(graph.getInt(data)), idAt(graph.getInt(data + 4)),
+                graph.getInt(data + 8), graph.getLong(data + 12));
+    }
+
+    /**
+     * Returns the ID at position K of the commit-graph file, or null if K
+     * is negative.
+     */
+    private String idAt(int k) {
+        if (k < 0) {
+            return null;
+        }
+        byte[] id = new byte[Pack.ID_BYTES];
+        graph.get(HEADER + k * Pack.ID_BYTES, id);
+        return Pack.toHex(id, 0);
+    }
+
+    /**
+     * Maps the commit-graph file and reads the tail file, if not done yet.
+     */
+    private void load() {
+        if (tail != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        tail = new HashMap<>();
+        if (file.isFile()) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (mapped.limit() < HEADER
+                        || !Arrays.equals(readBytes(mapped, 0, MAGIC.length), MAGIC)) {
+                    throw error("Corrupt commit graph.");
+                }
+                if (mapped.getInt(MAGIC.length) > VERSION) {
+                    throw error("The commit graph was written by a newer version of Gitlet.");
+                }
+                count = mapped.getInt(HEADER - 4);
+                if (mapped.limit() != HEADER + (long) count * (Pack.ID_BYTES + DATA_BYTES)) {
+                    throw error("Corrupt commit graph.");
+                }
+                graph = mapped;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        if (tailFile.isFile()) {
+            ByteBuffer in = ByteBuffer.wrap(readContents(tailFile));
+            while (in.remaining() >= TAIL_BYTES) {
+                String id = readID(in);
+                Node n = new Node(id, readID(in), readID(in), in.getInt(), in.getLong());
+                tail.put(id, n);
+            }
+        }
+        trace("commit graph", start);
+    }
+
+    /**
+     * Writes every commit of the graph to a new commit-graph file, through a
+     * synced temporary file and a rename, and deletes the tail file. Parents
+     * missing from the graph are added first, so that every parent has a
+     * position.
+     */
+    private void rewrite() {
+        TreeMap<String, Node> all = new TreeMap<>();
+        for (int k = 0; k < count; k += 1) {
+            Node n = node(k);
+            all.put(n.id, n);
+        }
+        all.putAll(tail);
+        all.putAll(pending);
+        Deque<Node> unchecked = new ArrayDeque<>(all.values());
+        while (!unchecked.isEmpty()) {
+            Node n = unchecked.pop();
+            for (String parent : new String[] {n.parent, n.parent2}) {
+                if (parent != null && !all.containsKey(parent)) {
+                    Node p = get(parent);
+                    if (p == null) {
+                        throw error("Missing parent %s of commit %s.", parent, n.id);
+                    }
+                    all.put(parent, p);
+                    unchecked.push(p);
+                }
+            }
+        }
+        Map<String, Integer> positions = new HashMap<>();
+        int[] fanout = new int[256];
+        for (String id : all.keySet()) {
+            positions.put(id, positions.size());
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER + all.size() * (Pack.ID_BYTES + DATA_BYTES));
+        out.put(MAGIC).putInt(VERSION);
+        int total = 0;
+        for (int f : fanout) {
+            total += f;
+            out.putInt(total);
+        }
+        for (String id : all.keySet()) {
+            out.put(Pack.fromHex(id));
+        }
+        for (Node n : all.values()) {
+            out.putInt(n.parent == null ? -1 : positions.get(n.parent));
+            out.putInt(n.parent2 == null ? -1 : positions.get(n.parent2));
+            out.putInt(n.generation).putLong(n.time);
+        }
+        File tmp = join(file.getParentFile(), ".tmp-commit-graph");
+        try (OutputStream o = new FileOutputStream(tmp)) {
+            o.write(out.array());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        sync(List.of(tmp));
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // Commits left in the tail by a crash here are also in the new file.
+        tailFile.delete();
+        syncDirectories(List.of(file));
+        graph = null;
+        count = 0;
+        tail = null;
+    }
+
+    /**
+     * Returns LEN bytes of BUF from position POS.
+     */
+    private static byte[] readBytes(ByteBuffer buf, int pos, int len) {
+        byte[] result = new byte[len];
+        buf.get(pos, result);
+        return result;
+    }
+
+    /**
+     * Returns the 20-byte form of ID, or zeros if ID is null.
+     */
+    private static byte[] binaryID(String id) {
+        return id == null ? NO_ID : Pack.fromHex(id);
+    }
+
+    /**
+     * Reads a 20-byte ID from IN, returning null for zeros.
+     */
+    private static String readID(ByteBuffer in) {
+        byte[] id = new byte[Pack.ID_BYTES];
+        in.get(id);
+        return Arrays.equals(id, NO_ID) ? null : Pack.toHex(id, 0);
+    }
+}
@@ -0,0 +1,283 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A long-running Gitlet process serving the commands of one repository over
+ * a Unix domain socket, .gitlet/daemon.sock, so that commands skip JVM
+ * startup and class loading, and find the commits they read already decoded.
+ * Only the owner of the repository can connect to the socket.
+ * Main forwards its arguments to the daemon when the socket exists, and runs
+ * the command itself when it does not or no daemon answers.
+ *
+ * Commands are served one at a time, each with the environment variables of
+ * Utils.COMMAND_ENV as the client has them, and in the client's time zone.
+ * A request is the number of arguments as an int followed by each argument
+ * as modified UTF-8, as written by DataOutputStream, then the number of
+ * variables sent followed by the name and value of each: those of
+ * COMMAND_ENV the client has set, and the ID of its time zone under
+ * Utils.COMMAND_ZONE. The reply is a sequence of frames, each a tag byte and
+ * an int: tag OUT or ERR followed by that many bytes written to standard
+ * output or standard error, and finally tag EXIT followed by the exit status.
+ *
+ * @author Daniel Zhao
+ */
+class Daemon {
+
+    /**
+     * Tags of reply frames.
+     */
+    private static final int EXIT = 0;
+    private static final int OUT = 1;
+    private static final int ERR = 2;
+    /**
+     * Size of the buffers output is sent through.
+     */
+    private static final int BUFFER_SIZE = 64 << 10;
+    /**
+     * The socket, relative to the working directory, which keeps its path
+     * short of the length limit on socket paths.
+     */
+    private static final Path SOCKET = Path.of(".gitlet", "daemon.sock");
+
+    /**
+     * Runs command ARGS in the daemon of the repository, if one is running,
+     * passing on its output, and returns whether it did. Setting
+     * GITLET_NO_DAEMON in the environment runs every command in process.
+     */
+    static boolean forward(String[] args) {
+        if (!Files.exists(SOCKET) || System.getenv("GITLET_NO_DAEMON") != null) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(SOCKET));
+        } catch (IOException excp) {
+            // Left behind by a daemon that is gone.
+            return false;
+        }
+        int status;
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            Map<String, String> env = new LinkedHashMap<>();
+            for (String name : Utils.COMMAND_ENV) {
+                String value = System.getenv(name);
+                if (value != null) {
+                    env.put(name, value);
+                }
+            }
+            // Sent as resolved here, since TZ alone does not say which zone
+            // a missing or unusual value stands for.
+            env.put(Utils.COMMAND_ZONE, ZoneId.systemDefault().getId());
+            request.writeInt(env.size());
+            for (Map.Entry<String, String> var : env.entrySet()) {
+                request.writeUTF(var.getKey());
+                request.writeUTF(var.getValue());
+            }
+            request.flush();
+            DataInputStream reply = new DataInputStream(Channels.newInputStream(channel));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int tag = reply.readByte();
+                int n = reply.readInt();
+                if (tag == EXIT) {
+                    status = n;
+                    break;
+                }
+                PrintStream target = tag == ERR ? System.err : System.out;
+                while (n > 0) {
+                    int len = Math.min(n, buffer.length);
+                    reply.readFully(buffer, 0, len);
+                    target.write(buffer, 0, len);
+                    n -= len;
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException("Lost the Gitlet daemon: " + excp.getMessage());
+        }
+        System.out.flush();
+        if (status != 0) {
+            System.exit(status);
+        }
+        return true;
+    }
+
+    /**
+     * Serves commands of the repository in the working directory until the
+     * process is killed or a "daemon --stop" command comes in.
+     */
+    static void serve() {
+        if (Files.exists(SOCKET)) {
+            try (SocketChannel other = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                other.connect(UnixDomainSocketAddress.of(SOCKET));
+                System.out.println("A Gitlet daemon is already running.");
+                return;
+            } catch (IOException excp) {
+                // Left behind by a daemon that is gone.
+                SOCKET.toFile().delete();
+            }
+        }
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            if (!bind(server)) {
+                System.out.println("A Gitlet daemon is already running.");
+                return;
+            }
+            SOCKET.toFile().deleteOnExit();
+            try {
+                boolean stop = false;
+                while (!stop) {
+                    try (SocketChannel client = server.accept()) {
+                        stop = handle(client);
+                    } catch (IOException excp) {
+                        // The client went away; serve the next one.
+                    } finally {
+                        System.setOut(stdout);
+                        System.setErr(stderr);
+                    }
+                }
+            } finally {
+                SOCKET.toFile().delete();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Binds SERVER to SOCKET so that only the owner of the repository can
+     * connect, and returns whether it did: false if another daemon bound
+     * SOCKET first. Anyone connecting runs commands as the owner, so the
+     * socket is bound in a new directory only the owner can enter, and
+     * renamed into place once only the owner can write to it.
+     */
+    private static boolean bind(ServerSocketChannel server) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET));
+            return true;
+        }
+        Path dir = Files.createTempDirectory(SOCKET.getParent(), "daemon-",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = dir.resolve("sock");
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, SOCKET);
+            return true;
+        } catch (FileAlreadyExistsException excp) {
+            return false;
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Runs the command requested on CLIENT, sending back its output, and
+     * returns whether it asked the daemon to stop.
+     */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream request = new DataInputStream(Channels.newInputStream(client));
+        String[] args = new String[request.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = request.readUTF();
+        }
+        Map<String, String> env = new HashMap<>();
+        for (int n = request.readInt(); n > 0; n -= 1) {
+            env.put(request.readUTF(), request.readUTF());
+        }
+        DataOutputStream reply = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client), BUFFER_SIZE));
+        boolean stop = args.length == 2 && args[0].equals("daemon") && args[1].equals("--stop");
+        PrintStream out = new PrintStream(new Frames(reply, OUT));
+        PrintStream err = new PrintStream(new Frames(reply, ERR));
+        System.setOut(out);
+        System.setErr(err);
+        int status = 0;
+        if (!stop) {
+            Utils.setCommandEnv(env);
+            Repository.refresh();
+            try {
+                Main.run(args);
+            } catch (RuntimeException | Error excp) {
+                excp.printStackTrace();
+                status = 1;
+            } finally {
+                Utils.setCommandEnv(null);
+            }
+        }
+        out.flush();
+        err.flush();
+        synchronized (reply) {
+            reply.writeByte(EXIT);
+            reply.writeInt(status);
+            reply.flush();
+        }
+        return stop;
+    }
+
+    /**
+     * An output stream sending what is written to it as reply frames of
+     * one tag. Commands may print from several threads, so frames are
+     * written whole under the lock of the reply.
+     */
+    private static class Frames extends OutputStream {
+        private final DataOutputStream reply;
+        private final int tag;
+
+        Frames(DataOutputStream reply, int tag) {
+            this.reply = reply;
+            this.tag = tag;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (reply) {
+                reply.writeByte(tag);
+                reply.writeInt(len);
+                reply.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (reply) {
+                reply.flush();
+            }
+        }
+    }
+}
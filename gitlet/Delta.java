@@ -0,0 +1,219 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/**
+ * Binary deltas between two byte arrays. A delta starts with the base and
+ * result sizes as varints, followed by a sequence of instructions: a byte with
+ * its high bit set copies a range of the base (the low bits say which offset
+ * and size bytes follow), and any other non-zero byte N inserts the next N
+ * literal bytes of the result.
+ *
+ * @author Daniel Zhao
+ */
+class Delta {
+
+    /**
+     * Width of the blocks of the base that are indexed for matching.
+     */
+    private static final int BLOCK = 16;
+    /**
+     * Longest run of literal bytes a single insert instruction can carry.
+     */
+    private static final int MAX_INSERT = 0x7f;
+    /**
+     * Longest range a single copy instruction can carry.
+     */
+    private static final int MAX_COPY = 0xffffff;
+    /**
+     * Candidates examined per hash bucket before giving up on a position.
+     */
+    private static final int MAX_CHAIN = 64;
+
+    /**
+     * Returns a delta that rebuilds TARGET from BASE.
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        // Index every aligned block of the base by its hash.
+        int blocks = base.length / BLOCK;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1) * 2);
+        int[] heads = new int[tableSize];
+        int[] next = new int[blocks];
+        Arrays.fill(heads, -1);
+        for (int b = 0; b < blocks; b += 1) {
+            int slot = hash(base, b * BLOCK) & (tableSize - 1);
+            next[b] = heads[slot];
+            heads[slot] = b;
+        }
+
+        int literalStart = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            int bestOffset = -1;
+            int bestLength = 0;
+            if (blocks > 0) {
+                int slot = hash(target, i) & (tableSize - 1);
+                int chain = 0;
+                for (int b = heads[slot]; b >= 0 && chain < MAX_CHAIN; b = next[b], chain += 1) {
+                    int offset = b * BLOCK;
+                    int length = 0;
+                    while (offset + length < base.length && i + length < target.length
+                            && base[offset + length] == target[i + length]) {
+                        length += 1;
+                    }
+                    if (length > bestLength) {
+                        bestLength = length;
+                        bestOffset = offset;
+                    }
+                }
+            }
+            if (bestLength < BLOCK) {
+                i += 1;
+                continue;
+            }
+            // Grow the match backwards over literal bytes not yet emitted.
+            while (i > literalStart && bestOffset > 0
+                    && base[bestOffset - 1] == target[i - 1]) {
+                i -= 1;
+                bestOffset -= 1;
+                bestLength += 1;
+            }
+            writeInsert(out, target, literalStart, i);
+            writeCopy(out, bestOffset, bestLength);
+            i += bestLength;
+            literalStart = i;
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the result of applying DELTA to BASE.
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        long baseSize = readVarint(delta, pos);
+        long resultSize = readVarint(delta, pos);
+        if (baseSize != base.length) {
+            throw error("Delta does not match its base object.");
+        }
+        byte[] result = new byte[(int) resultSize];
+        int out = 0;
+        int p = pos[0];
+        while (p < delta.length) {
+            int op = delta[p++] & 0xff;
+            if ((op & 0x80) != 0) {
+                int offset = 0;
+                int size = 0;
+                for (int k = 0; k < 4; k += 1) {
+                    if ((op & (1 << k)) != 0) {
+                        offset |= (delta[p++] & 0xff) << (8 * k);
+                    }
+                }
+                for (int k = 0; k < 3; k += 1) {
+                    if ((op & (0x10 << k)) != 0) {
+                        size |= (delta[p++] & 0xff) << (8 * k);
+                    }
+                }
+                System.arraycopy(base, offset, result, out, size);
+                out += size;
+            } else if (op != 0) {
+                System.arraycopy(delta, p, result, out, op);
+                p += op;
+                out += op;
+            } else {
+                throw error("Corrupt delta instruction.");
+            }
+        }
+        if (out != result.length) {
+            throw error("Delta produced an object of the wrong size.");
+        }
+        return result;
+    }
+
+    /**
+     * Returns a hash of the BLOCK bytes of DATA starting at OFFSET.
+     */
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            h = h * 31 + (data[offset + k] & 0xff);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Writes insert instructions for DATA[START..END).
+     */
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int start, int end) {
+        while (start < end) {
+            int n = Math.min(MAX_INSERT, end - start);
+            out.write(n);
+            out.write(data, start, n);
+            start += n;
+        }
+    }
+
+    /**
+     * Writes copy instructions for LENGTH bytes of the base starting at OFFSET.
+     */
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int length) {
+        while (length > 0) {
+            int size = Math.min(MAX_COPY, length);
+            int op = 0x80;
+            byte[] args = new byte[7];
+            int n = 0;
+            for (int k = 0; k < 4; k += 1) {
+                int b = (offset >>> (8 * k)) & 0xff;
+                if (b != 0) {
+                    op |= 1 << k;
+                    args[n++] = (byte) b;
+                }
+            }
+            for (int k = 0; k < 3; k += 1) {
+                int b = (size >>> (8 * k)) & 0xff;
+                if (b != 0) {
+                    op |= 0x10 << k;
+                    args[n++] = (byte) b;
+                }
+            }
+            out.write(op);
+            out.write(args, 0, n);
+            offset += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Writes VALUE to OUT as a little-endian base-128 varint.
+     */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads a varint from DATA at POS[0], advancing POS[0] past it.
+     */
+    static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
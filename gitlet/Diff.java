@@ -0,0 +1,378 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line diffs and three-way merges of file contents. Contents are kept as
+ * the bytes they were read as, indexed by the offset and hash of each line,
+ * so lines are compared without building a String for each, and merged
+ * output is written straight from those bytes.
+ *
+ * Lines are matched by Myers' algorithm, in its linear space form: the
+ * middle snake of the shortest edit script is found by searching from both
+ * ends at once, and the parts before and after it are matched in turn. A
+ * merge lines up both sides against the base in the manner of diff3. A
+ * region changed on one side only takes that side's lines, one changed the
+ * same way on both takes either, and one changed differently is a conflict,
+ * written between markers as the whole-file conflicts of earlier versions
+ * were. A diff is printed in unified form, with CONTEXT unchanged lines
+ * around each change.
+ *
+ * @author Daniel Zhao
+ */
+class Diff {
+
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Number of unchanged lines shown before and after each change.
+     */
+    private static final int CONTEXT = 3;
+
+    /**
+     * The lines of some contents. Each line includes the newline ending it;
+     * the last one may have none.
+     */
+    static class Lines {
+        /**
+         * The contents.
+         */
+        private final byte[] data;
+        /**
+         * Offset of each line in DATA, followed by the length of DATA.
+         */
+        private final int[] starts;
+        /**
+         * Hash of each line.
+         */
+        private final int[] hashes;
+
+        /**
+         * The lines of DATA, which is taken as empty if null.
+         */
+        Lines(byte[] data) {
+            this.data = data == null ? new byte[0] : data;
+            int count = 0;
+            for (int i = 0; i < this.data.length; i += 1) {
+                if (this.data[i] == '\n' || i == this.data.length - 1) {
+                    count += 1;
+                }
+            }
+            starts = new int[count + 1];
+            hashes = new int[count];
+            int line = 0;
+            int h = 0;
+            for (int i = 0; i < this.data.length; i += 1) {
+                h = 31 * h + this.data[i];
+                if (this.data[i] == '\n' || i == this.data.length - 1) {
+                    hashes[line] = h;
+                    line += 1;
+                    starts[line] = i + 1;
+                    h = 0;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of lines.
+         */
+        int size() {
+            return hashes.length;
+        }
+
+        /**
+         * Returns whether line I is the same as line J of OTHER.
+         */
+        boolean same(int i, Lines other, int j) {
+            return hashes[i] == other.hashes[j]
+                    && Arrays.equals(data, starts[i], starts[i + 1],
+                            other.data, other.starts[j], other.starts[j + 1]);
+        }
+
+        /**
+         * Returns whether lines FROM to TO are the same as lines OTHERFROM
+         * to OTHERTO of OTHER.
+         */
+        boolean same(int from, int to, Lines other, int otherFrom, int otherTo) {
+            if (to - from != otherTo - otherFrom) {
+                return false;
+            }
+            for (int i = 0; i < to - from; i += 1) {
+                if (!same(from + i, other, otherFrom + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes lines FROM to TO to OUT.
+         */
+        void write(OutputStream out, int from, int to) throws IOException {
+            out.write(data, starts[from], starts[to] - starts[from]);
+        }
+
+        /**
+         * Writes line I to OUT after PREFIX, ending it with a newline and
+         * noting if it had none.
+         */
+        void write(Writer out, char prefix, int i) throws IOException {
+            int end = starts[i + 1];
+            boolean newline = end > starts[i] && data[end - 1] == '\n';
+            out.write(prefix);
+            out.write(new String(data, starts[i], end - starts[i] - (newline ? 1 : 0),
+                    StandardCharsets.UTF_8));
+            out.write('\n');
+            if (!newline) {
+                out.write("\\ No newline at end of file\n");
+            }
+        }
+
+        /**
+         * Returns whether the contents hold a zero byte, as only binary
+         * files do.
+         */
+        boolean binary() {
+            for (byte b : data) {
+                if (b == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns, for each line of A, the line of B it is kept as in a
+     * shortest edit script turning A into B, or -1 if it is deleted.
+     */
+    static int[] match(Lines a, Lines b) {
+        int[] result = new int[a.size()];
+        Arrays.fill(result, -1);
+        match(a, 0, a.size(), b, 0, b.size(), result);
+        return result;
+    }
+
+    /**
+     * Matches lines ALO to AHI of A with lines BLO to BHI of B into RESULT.
+     */
+    private static void match(Lines a, int aLo, int aHi, Lines b, int bLo, int bHi,
+                              int[] result) {
+        while (aLo < aHi && bLo < bHi && a.same(aLo, b, bLo)) {
+            result[aLo++] = bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a.same(aHi - 1, b, bHi - 1)) {
+            result[--aHi] = --bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        // Without a common first or last line, the script has at least two
+        // edits, so the parts on either side of the snake are smaller.
+        int[] snake = middleSnake(a, aLo, aHi, b, bLo, bHi);
+        match(a, aLo, snake[0], b, bLo, snake[1], result);
+        for (int x = snake[0], y = snake[1]; x < snake[2]; x += 1, y += 1) {
+            result[x] = y;
+        }
+        match(a, snake[2], aHi, b, snake[3], bHi, result);
+    }
+
+    /**
+     * Returns the middle snake of a shortest edit script turning lines ALO
+     * to AHI of A into lines BLO to BHI of B, as the line of A and of B it
+     * starts at, followed by the lines it ends before.
+     */
+    private static int[] middleSnake(Lines a, int aLo, int aHi, Lines b, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        // Furthest reaching x on each diagonal k = x - y, searching forward
+        // from the start and, in reversed coordinates, backward from the end.
+        int[] forward = new int[2 * offset + 1];
+        int[] backward = new int[2 * offset + 1];
+        for (int d = 0; d <= max; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while (x < n && y < m && a.same(aLo + x, b, bLo + y)) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                int r = delta - k;
+                if (odd && r >= -(d - 1) && r <= d - 1 && x + backward[offset + r] >= n) {
+                    return new int[] {aLo + x0, bLo + y0, aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])
+                        ? backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int x0 = x;
+                int y0 = y;
+                while (x < n && y < m && a.same(aHi - 1 - x, b, bHi - 1 - y)) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[offset + k] = x;
+                int f = delta - k;
+                if (!odd && f >= -d && f <= d && x + forward[offset + f] >= n) {
+                    return new int[] {aHi - x, bHi - y, aHi - x0, bHi - y0};
+                }
+            }
+        }
+        throw new IllegalStateException("No middle snake.");
+    }
+
+    /**
+     * Writes to OUT the changes turning A, labelled OLDNAME, into B,
+     * labelled NEWNAME, as a unified diff. Nothing is written if they are
+     * the same.
+     */
+    static void unified(String oldName, Lines a, String newName, Lines b, Writer out)
+            throws IOException {
+        // Each change as the lines of A it removes and of B it adds
+        int[] inB = match(a, b);
+        List<int[]> changes = new ArrayList<>();
+        for (int i = 0, j = 0; i < a.size() || j < b.size();) {
+            if (i < a.size() && inB[i] == j) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int i0 = i;
+            int j0 = j;
+            while (i < a.size() && inB[i] < 0) {
+                i += 1;
+            }
+            j = i < a.size() ? inB[i] : b.size();
+            changes.add(new int[] {i0, i, j0, j});
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        out.write("--- " + oldName + "\n");
+        out.write("+++ " + newName + "\n");
+        for (int first = 0; first < changes.size();) {
+            // Changes whose contexts touch share a hunk.
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * CONTEXT) {
+                last += 1;
+            }
+            int[] head = changes.get(first);
+            int[] tail = changes.get(last);
+            int aStart = Math.max(0, head[0] - CONTEXT);
+            int aEnd = Math.min(a.size(), tail[1] + CONTEXT);
+            int bStart = head[2] - (head[0] - aStart);
+            int bEnd = tail[3] + (aEnd - tail[1]);
+            out.write("@@ -" + range(aStart, aEnd) + " +" + range(bStart, bEnd) + " @@\n");
+            int i = aStart;
+            for (int[] change : changes.subList(first, last + 1)) {
+                for (; i < change[0]; i += 1) {
+                    a.write(out, ' ', i);
+                }
+                for (; i < change[1]; i += 1) {
+                    a.write(out, '-', i);
+                }
+                for (int j = change[2]; j < change[3]; j += 1) {
+                    b.write(out, '+', j);
+                }
+            }
+            for (; i < aEnd; i += 1) {
+                a.write(out, ' ', i);
+            }
+            first = last + 1;
+        }
+    }
+
+    /**
+     * Returns lines FROM to TO as a range of a hunk header, which counts
+     * lines from 1 and names the line before an empty range.
+     */
+    private static String range(int from, int to) {
+        if (to - from == 1) {
+            return Integer.toString(from + 1);
+        }
+        return (to == from ? from : from + 1) + "," + (to - from);
+    }
+
+    /**
+     * Writes to OUT the merge of OURS and THEIRS, two versions changed from
+     * BASE, and returns whether any of their changes conflicted.
+     */
+    static boolean merge(Lines base, Lines ours, Lines theirs, OutputStream out)
+            throws IOException {
+        int[] inOurs = match(base, ours);
+        int[] inTheirs = match(base, theirs);
+        int o = 0;
+        int a = 0;
+        int b = 0;
+        boolean conflict = false;
+        while (true) {
+            // Lines kept, in order, by both sides
+            int stable = 0;
+            while (o + stable < base.size() && inOurs[o + stable] == a + stable
+                    && inTheirs[o + stable] == b + stable) {
+                stable += 1;
+            }
+            if (stable > 0) {
+                base.write(out, o, o + stable);
+                o += stable;
+                a += stable;
+                b += stable;
+                continue;
+            }
+            // The changed region runs to the next line both sides kept.
+            int next = o;
+            while (next < base.size() && (inOurs[next] < 0 || inTheirs[next] < 0)) {
+                next += 1;
+            }
+            int nextA = next < base.size() ? inOurs[next] : ours.size();
+            int nextB = next < base.size() ? inTheirs[next] : theirs.size();
+            if (next == o && nextA == a && nextB == b) {
+                return conflict;
+            }
+            if (base.same(o, next, ours, a, nextA)) {
+                theirs.write(out, b, nextB);
+            } else if (base.same(o, next, theirs, b, nextB)
+                    || ours.same(a, nextA, theirs, b, nextB)) {
+                ours.write(out, a, nextA);
+            } else {
+                out.write(OURS);
+                ours.write(out, a, nextA);
+                out.write(SEPARATOR);
+                theirs.write(out, b, nextB);
+                out.write(END);
+                conflict = true;
+            }
+            o = next;
+            a = nextA;
+            b = nextB;
+        }
+    }
+
+    /**
+     * Writes to OUT the whole of OURS and THEIRS as one conflict.
+     */
+    static void conflict(Lines ours, Lines theirs, OutputStream out) throws IOException {
+        out.write(OURS);
+        ours.write(out, 0, ours.size());
+        out.write(SEPARATOR);
+        theirs.write(out, 0, theirs.size());
+        out.write(END);
+    }
+}
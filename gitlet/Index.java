@@ -0,0 +1,393 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/**
+ * The index of a Gitlet repository. It holds the staging area, mapping each
+ * staged file to the ID of its staged blob, which is written to the object
+ * store when the file is added, or to a removal marker. It also holds, for
+ * each file of the working directory that has been hashed, the size,
+ * modification time, change time and inode it had then, and its blob ID. A
+ * file whose stat data still match its entry is known to have that ID
+ * without being read again.
+ *
+ * A file modified within the timestamp granularity of its hashing could
+ * change again without its modification time moving, so an entry recorded
+ * less than RACY_WINDOW after the file's modification time is marked racy,
+ * and is trusted only once it has been hashed again later on.
+ *
+ * An index may be used from several threads at once. Files are stat'ed and
+ * hashed outside its lock, so they are hashed concurrently.
+ *
+ * The file is the magic "GLIX", a version number, the number of entries and
+ * then each entry, sorted by name: the length-prefixed UTF-8 name, the size,
+ * mtime, ctime and inode as longs (times in nanoseconds), a flags byte and
+ * the 20-byte blob ID. Then come the number of staged files and each of
+ * them, sorted by name: the length-prefixed UTF-8 name, a byte that is 1 for
+ * an addition and 0 for a removal, and for an addition the 20-byte blob ID.
+ * The file ends with the SHA-1 of everything before it. Version 1 files have
+ * no staged files.
+ *
+ * @author Daniel Zhao
+ */
+class Index {
+
+    private static final byte[] MAGIC = "GLIX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    /**
+     * Flag of an entry that must be hashed again before it is trusted.
+     */
+    private static final int RACY = 1;
+    /**
+     * Files modified this recently when they were hashed get racy entries.
+     */
+    private static final long RACY_WINDOW = TimeUnit.SECONDS.toNanos(2);
+    /**
+     * Size of the buffer files are hashed through.
+     */
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * The index file.
+     */
+    private final File file;
+    /**
+     * Entries by file name, read on first use.
+     */
+    private TreeMap<String, Entry> entries;
+    /**
+     * Staged files: the blob ID of each staged addition, and null for each
+     * staged removal. Read along with ENTRIES.
+     */
+    private TreeMap<String, String> staged;
+    /**
+     * Whether ENTRIES or STAGED changed since they were read.
+     */
+    private boolean dirty;
+
+    /**
+     * The state of one working file when it was last hashed.
+     */
+    private static class Entry {
+        private long size;
+        private long mtime;
+        private long ctime;
+        private long inode;
+        private int flags;
+        private String id;
+
+        /**
+         * Returns whether STAT still describes the file of this entry.
+         */
+        boolean matches(Entry stat) {
+            return (flags & RACY) == 0 && size == stat.size && mtime == stat.mtime
+                    && ctime == stat.ctime && inode == stat.inode;
+        }
+    }
+
+    /**
+     * The index of the repository whose .gitlet directory is ROOT.
+     */
+    Index(File root) {
+        file = join(root, "index");
+    }
+
+    /**
+     * Returns the blob ID of the contents of working file F, reading and
+     * hashing F only if it changed since it was last hashed.
+     */
+    String hash(File f) {
+        Entry stat = stat(f);
+        String id = cached(f.getName(), stat);
+        if (id != null) {
+            return id;
+        }
+        id = sha1Of(f);
+        record(f.getName(), stat, id);
+        return id;
+    }
+
+    /**
+     * Returns the blob ID of the contents of working file F, and makes sure
+     * STORE has that blob. F is read at most once: when it changed since it
+     * was last hashed, it is hashed and stored in the same pass.
+     */
+    String store(File f, ObjectStore store) {
+        Entry stat = stat(f);
+        String id = cached(f.getName(), stat);
+        if (id != null) {
+            if (!store.hasBlob(id)) {
+                store.writeBlob(f);
+            }
+            return id;
+        }
+        id = store.writeBlob(f);
+        record(f.getName(), stat, id);
+        return id;
+    }
+
+    /**
+     * Records that working file F was just written with the contents of
+     * blob ID.
+     */
+    void written(File f, String id) {
+        record(f.getName(), stat(f), id);
+    }
+
+    /**
+     * Forgets working file NAME, which no longer exists.
+     */
+    synchronized void remove(String name) {
+        if (entries().remove(name) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns the staged files, mapped to the IDs of their staged blobs, or
+     * to null for staged removals.
+     */
+    synchronized SortedMap<String, String> staged() {
+        entries();
+        return Collections.unmodifiableSortedMap(staged);
+    }
+
+    /**
+     * Stages file NAME with blob ID, or for removal if ID is null.
+     */
+    synchronized void stage(String name, String id) {
+        entries();
+        staged.put(name, id);
+        dirty = true;
+    }
+
+    /**
+     * Removes file NAME from the staging area.
+     */
+    synchronized void unstage(String name) {
+        entries();
+        if (staged.containsKey(name)) {
+            staged.remove(name);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Empties the staging area.
+     */
+    synchronized void clearStage() {
+        entries();
+        if (!staged.isEmpty()) {
+            staged.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the index if it changed, through a synced temporary file and a
+     * rename.
+     */
+    synchronized void commit() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = join(file.getParentFile(), ".tmp-index");
+        writeContents(tmp, encode());
+        sync(List.of(tmp));
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        dirty = false;
+    }
+
+    /**
+     * Discards the changes made since the last commit, and forgets the
+     * entries read, so that they are read again on next use.
+     */
+    synchronized void refresh() {
+        entries = null;
+        staged = null;
+        dirty = false;
+    }
+
+    /**
+     * Returns the ID recorded for file NAME if STAT still matches its entry,
+     * and otherwise null.
+     */
+    private synchronized String cached(String name, Entry stat) {
+        Entry e = entries().get(name);
+        return e != null && e.matches(stat) ? e.id : null;
+    }
+
+    private synchronized void record(String name, Entry stat, String id) {
+        stat.id = id;
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (now - stat.mtime < RACY_WINDOW) {
+            stat.flags |= RACY;
+        }
+        entries().put(name, stat);
+        dirty = true;
+    }
+
+    private synchronized TreeMap<String, Entry> entries() {
+        if (entries == null) {
+            long start = System.nanoTime();
+            entries = new TreeMap<>();
+            staged = new TreeMap<>();
+            if (file.isFile()) {
+                decode(readContents(file));
+            }
+            trace("index", start);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the current stat data of F as an entry without an ID.
+     */
+    private static Entry stat(File f) {
+        Entry result = new Entry();
+        try {
+            Map<String, Object> attrs;
+            try {
+                attrs = Files.readAttributes(f.toPath(), "unix:size,lastModifiedTime,ctime,ino");
+                result.ctime = ((FileTime) attrs.get("ctime")).to(TimeUnit.NANOSECONDS);
+                result.inode = (Long) attrs.get("ino");
+            } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+                attrs = Files.readAttributes(f.toPath(), "size,lastModifiedTime,creationTime");
+                result.ctime = ((FileTime) attrs.get("creationTime")).to(TimeUnit.NANOSECONDS);
+            }
+            result.size = (Long) attrs.get("size");
+            result.mtime = ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the SHA-1 of the contents of F, read in bounded pieces.
+     */
+    private static String sha1Of(File f) {
+        try (InputStream in = new FileInputStream(f)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+            return Pack.toHex(md.digest(), 0);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    private byte[] encode() {
+        int size = MAGIC.length + 4 + 4 + 4 + Pack.ID_BYTES;
+        TreeMap<String, byte[]> names = new TreeMap<>();
+        for (String name : entries.keySet()) {
+            byte[] n = name.getBytes(StandardCharsets.UTF_8);
+            names.put(name, n);
+            size += 2 + n.length + 4 * 8 + 1 + Pack.ID_BYTES;
+        }
+        for (Map.Entry<String, String> item : staged.entrySet()) {
+            byte[] n = item.getKey().getBytes(StandardCharsets.UTF_8);
+            names.put(item.getKey(), n);
+            size += 2 + n.length + 1 + (item.getValue() == null ? 0 : Pack.ID_BYTES);
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC).putInt(VERSION).putInt(entries.size());
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry e = item.getValue();
+            byte[] n = names.get(item.getKey());
+            out.putShort((short) n.length).put(n);
+            out.putLong(e.size).putLong(e.mtime).putLong(e.ctime).putLong(e.inode);
+            out.put((byte) e.flags).put(Pack.fromHex(e.id));
+        }
+        out.putInt(staged.size());
+        for (Map.Entry<String, String> item : staged.entrySet()) {
+            byte[] n = names.get(item.getKey());
+            out.putShort((short) n.length).put(n);
+            if (item.getValue() == null) {
+                out.put((byte) 0);
+            } else {
+                out.put((byte) 1).put(Pack.fromHex(item.getValue()));
+            }
+        }
+        out.put(Pack.fromHex(sha1(Arrays.copyOf(out.array(), out.position()))));
+        return out.array();
+    }
+
+    /**
+     * Reads the entries and staged files encoded in DATA.
+     */
+    private void decode(byte[] data) {
+        int body = data.length - Pack.ID_BYTES;
+        if (body < MAGIC.length + 8
+                || !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || !sha1(Arrays.copyOf(data, body)).equals(Pack.toHex(data, body))) {
+            throw error("Corrupt index file.");
+        }
+        ByteBuffer in = ByteBuffer.wrap(data, MAGIC.length, body - MAGIC.length);
+        int version = in.getInt();
+        if (version > VERSION) {
+            throw error("The index was written by a newer version of Gitlet.");
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i += 1) {
+            String name = readName(in);
+            Entry e = new Entry();
+            e.size = in.getLong();
+            e.mtime = in.getLong();
+            e.ctime = in.getLong();
+            e.inode = in.getLong();
+            e.flags = in.get();
+            e.id = readID(in);
+            entries.put(name, e);
+        }
+        if (version >= 2) {
+            count = in.getInt();
+            for (int i = 0; i < count; i += 1) {
+                String name = readName(in);
+                staged.put(name, in.get() == 0 ? null : readID(in));
+            }
+        }
+    }
+
+    private static String readName(ByteBuffer in) {
+        int len = in.getShort() & 0xffff;
+        String name = new String(in.array(), in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return name;
+    }
+
+    private static String readID(ByteBuffer in) {
+        String id = Pack.toHex(in.array(), in.position());
+        in.position(in.position() + Pack.ID_BYTES);
+        return id;
+    }
+}
@@ -15,6 +15,43 @@ public class Main {
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        if (args.length >= 1 && args[0].equals("daemon")) {
+            if (args.length == 2 && args[1].equals("--stop")) {
+                if (!Daemon.forward(args)) {
+                    System.out.println("No Gitlet daemon is running.");
+                }
+            } else if (args.length != 1) {
+                System.out.println("Incorrect operands.");
+            } else if (!Repository.load()) {
+                System.out.println("Not in an initialized Gitlet directory.");
+            } else {
+                Daemon.serve();
+            }
+            return;
+        }
+        if (!Daemon.forward(args)) {
+            run(args);
+        }
+    }
+
+    /**
+     * Runs the command given by ARGS in this process.
+     */
+    static void run(String[] args) {
+        long start = System.nanoTime();
+        boolean done = false;
+        try {
+            execute(args);
+            done = true;
+        } finally {
+            if (!done) {
+                Repository.discard();
+            }
+            trace("command", start);
+        }
+    }
+
+    private static void execute(String[] args) {
         boolean hasRepo = Repository.load();
         if(args.length == 0) {
             System.out.println("Please enter a command.");
@@ -22,6 +59,7 @@ public class Main {
         }
         if(args[0].equals("init")){
             Repository.init();
+            Repository.finish();
             return;
         }
         if (!hasRepo) {
@@ -79,7 +117,6 @@ public class Main {
                     if(commitID.length() < 40) {
                         commitID = Repository.abbreviated(commitID);
                         if(commitID == null) {
-                            System.out.println("No commit with that id exists.");
                             break;
                         }
                     }
@@ -105,13 +142,42 @@ public class Main {
                 Repository.removeFile(args[1]);
                 break;
             case "global-log":
-                if (args.length > 1) {
+                // global-log [-n COUNT] [--skip COUNT]
+                int limit = -1;
+                int skip = 0;
+                boolean badOperands = args.length % 2 == 0;
+                for (int i = 1; i + 1 < args.length && !badOperands; i += 2) {
+                    int value;
+                    try {
+                        value = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException excp) {
+                        value = -1;
+                    }
+                    if (value < 0) {
+                        badOperands = true;
+                    } else if (args[i].equals("-n")) {
+                        limit = value;
+                    } else if (args[i].equals("--skip")) {
+                        skip = value;
+                    } else {
+                        badOperands = true;
+                    }
+                }
+                if (badOperands) {
                     System.out.println("Incorrect operands.");
                     break;
                 }
-                Repository.printGlobalLog();
+                Repository.printGlobalLog(skip, limit);
                 break;
             case "find":
+                if (args.length == 3 && args[1].equals("--word")) {
+                    Repository.findWords(args[2]);
+                    break;
+                }
+                if (args.length == 3 && args[1].equals("--contains")) {
+                    Repository.findContaining(args[2]);
+                    break;
+                }
                 if (args.length > 2) {
                     System.out.println("Incorrect operands.");
                     break;
@@ -148,12 +214,38 @@ public class Main {
                 if(commitID.length() < 40) {
                     commitID = Repository.abbreviated(commitID);
                     if(commitID == null) {
-                        System.out.println("No commit with that id exists.");
                         break;
                     }
                 }
                 Repository.reset(commitID);
                 break;
+            case "diff":
+                // diff, diff --staged, or diff COMMIT COMMIT
+                if (args.length == 1) {
+                    Repository.diff();
+                    break;
+                }
+                if (args.length == 2 && args[1].equals("--staged")) {
+                    Repository.diffStaged();
+                    break;
+                }
+                if (args.length != 3) {
+                    System.out.println("Incorrect operands.");
+                    break;
+                }
+                String fromID = args[1];
+                String toID = args[2];
+                if (fromID.length() < 40) {
+                    fromID = Repository.abbreviated(fromID);
+                }
+                if (fromID != null && toID.length() < 40) {
+                    toID = Repository.abbreviated(toID);
+                }
+                if (fromID == null || toID == null) {
+                    break;
+                }
+                Repository.diff(fromID, toID);
+                break;
             case "merge":
                 if (args.length > 2) {
                     System.out.println("Incorrect operands.");
@@ -205,9 +297,27 @@ public class Main {
                 }
                 Repository.pull(args[1], args[2]);
                 break;
+            case "repack":
+                if (args.length > 1) {
+                    System.out.println("Incorrect operands.");
+                    break;
+                }
+                Repository.repack();
+                break;
+            case "migrate":
+                if (args.length > 1) {
+                    System.out.println("Incorrect operands.");
+                    break;
+                }
+                Repository.migrate();
+                break;
             default:
                 System.out.println("No command with that name exists.");
                 break;
         }
+        Repository.finish();
+        if (getenv("GITLET_STATS") != null) {
+            Repository.printCacheStats();
+        }
     }
 }
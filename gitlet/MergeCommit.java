@@ -1,17 +1,33 @@
 package gitlet;
 
-import java.util.TreeMap;
-
 public class MergeCommit extends Commit {
+    /**
+     * Pinned so that merge commits serialized by earlier versions can still be read.
+     */
+    private static final long serialVersionUID = -4768518999635128139L;
     private String parent2ID;
 
-    public MergeCommit(String message, String parentID, String parent2ID, TreeMap<String,
-            String> blobs, String branch, int length) {
-        super(message, parentID, blobs, branch, length);
+    public MergeCommit(String message, String parentID, String parent2ID, String treeID,
+                       String branch, int length) {
+        super(message, parentID, treeID, branch, length);
+        this.parent2ID = parent2ID;
+    }
+
+    /**
+     * A merge commit named ID with second parent PARENT2ID, whose other
+     * fields are filled in by Commit.decode.
+     */
+    MergeCommit(String id, String parent2ID) {
+        super(id);
         this.parent2ID = parent2ID;
     }
 
     public String getParent2ID() {
         return parent2ID;
     }
+
+    @Override
+    String secondParentID() {
+        return parent2ID;
+    }
 }
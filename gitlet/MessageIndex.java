@@ -0,0 +1,506 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * An index of the commit messages of one Gitlet repository, answering which
+ * commits have a given message, contain a given word, or contain a given
+ * piece of text without reading every commit.
+ *
+ * Each message is filed under a number of keys: one for the whole message,
+ * one for each of its words, and one for each three-character piece of it,
+ * words and pieces in lower case. A key is the hash of its kind and text, so
+ * different texts may share a key, and every commit found is checked against
+ * its actual message before it is returned. Text shorter than three
+ * characters has no pieces to look up, so searching for it reads every
+ * message.
+ *
+ * The message-index file is the magic "GLMI", a version number, the number
+ * of commits and their 20-byte IDs, then the number of postings, a
+ * 256-entry fanout table (entry i counts the postings whose key has top
+ * byte at most i) and the postings, sorted: each a key and the position of
+ * a commit in the ID list, as ints. It is memory-mapped and binary-searched
+ * when read. Commits added since it was written are appended with their
+ * messages to the message-index-tail file, which is searched directly and
+ * merged into a new message-index once it is long enough. An index missing
+ * both files is built from every commit in the store.
+ *
+ * @author Daniel Zhao
+ */
+class MessageIndex {
+
+    private static final byte[] MAGIC = "GLMI".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    /**
+     * Kinds of keys, hashed along with their text.
+     */
+    private static final char MESSAGE = 'm';
+    private static final char WORD = 'w';
+    private static final char PIECE = 't';
+    /**
+     * Length of the pieces messages are split into for text searches.
+     */
+    private static final int PIECE_LENGTH = 3;
+    /**
+     * Smallest number of tail commits at which the tail is merged into the
+     * index. The tail may grow to a sixteenth of the index, so that merges
+     * get rarer as the index grows.
+     */
+    private static final int TAIL_LIMIT = 512;
+
+    /**
+     * The message-index file.
+     */
+    private final File file;
+    /**
+     * The message-index-tail file.
+     */
+    private final File tailFile;
+    /**
+     * Store the commits of this index are listed from, and the cache they
+     * are read through.
+     */
+    private final ObjectStore store;
+    private final CommitCache commits;
+    /**
+     * The mapped message-index file, or null if there is none. Read on first use.
+     */
+    private ByteBuffer index;
+    /**
+     * Number of commits in INDEX, and the offsets of its fanout table and
+     * postings.
+     */
+    private int count;
+    private int fanoutOffset;
+    private int postingsOffset;
+    /**
+     * Messages of the tail file by commit ID, read along with INDEX, and the
+     * length of the tail file up to its last whole commit.
+     */
+    private Map<String, String> tail;
+    private long tailEnd;
+    /**
+     * Messages of the commits added since the last commit, by ID.
+     */
+    private final Map<String, String> pending = new LinkedHashMap<>();
+
+    /**
+     * The message index of the repository whose .gitlet directory is ROOT,
+     * whose commits are in STORE and are read through COMMITS.
+     */
+    MessageIndex(File root, ObjectStore store, CommitCache commits) {
+        file = join(root, "message-index");
+        tailFile = join(root, "message-index-tail");
+        this.store = store;
+        this.commits = commits;
+    }
+
+    /**
+     * Adds commit C, which has just been written to the object store.
+     */
+    void add(Commit c) {
+        load();
+        if (!tail.containsKey(c.getID())) {
+            pending.put(c.getID(), c.getMessage());
+        }
+    }
+
+    /**
+     * Discards the commits added since the last commit, and forgets the
+     * files read, so that they are read again on next use.
+     */
+    void refresh() {
+        pending.clear();
+        index = null;
+        count = 0;
+        tail = null;
+    }
+
+    /**
+     * Returns the IDs of the commits whose message is MESSAGE, in sorted order.
+     */
+    List<String> find(String message) {
+        return search(List.of(key(MESSAGE, message)), m -> m.equals(message));
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains every word of
+     * WORDS, ignoring case, in sorted order.
+     */
+    List<String> findWords(String words) {
+        List<String> wanted = words(words.toLowerCase(Locale.ROOT));
+        List<Integer> keys = new ArrayList<>();
+        for (String w : wanted) {
+            keys.add(key(WORD, w));
+        }
+        return search(keys, m -> words(m.toLowerCase(Locale.ROOT)).containsAll(wanted));
+    }
+
+    /**
+     * Returns the IDs of the commits whose message contains TEXT, in sorted
+     * order.
+     */
+    List<String> findContaining(String text) {
+        List<Integer> keys = new ArrayList<>();
+        for (String piece : pieces(text.toLowerCase(Locale.ROOT))) {
+            keys.add(key(PIECE, piece));
+        }
+        return search(keys, m -> m.contains(text));
+    }
+
+    /**
+     * Writes the commits added since the last commit. They are appended to
+     * the tail file and synced, unless that makes the tail too long, in which
+     * case a new message-index file covering every commit replaces both
+     * files.
+     */
+    void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        load();
+        if (index == null || tail.size() + pending.size() >= Math.max(TAIL_LIMIT, count / 16)) {
+            rewrite();
+        } else {
+            List<byte[]> records = new ArrayList<>();
+            int size = 0;
+            for (Map.Entry<String, String> c : pending.entrySet()) {
+                byte[] msg = c.getValue().getBytes(StandardCharsets.UTF_8);
+                byte[] record = ByteBuffer.allocate(Pack.ID_BYTES + 4 + msg.length)
+                        .put(Pack.fromHex(c.getKey())).putInt(msg.length).put(msg).array();
+                records.add(record);
+                size += record.length;
+            }
+            ByteBuffer out = ByteBuffer.allocate(size);
+            for (byte[] record : records) {
+                out.put(record);
+            }
+            // Whatever a crash left past the last whole commit is dropped first.
+            try (FileChannel ch = FileChannel.open(tailFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ch.truncate(tailEnd);
+                ch.position(tailEnd);
+                ch.write(out.flip());
+                ch.force(true);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            syncDirectories(List.of(tailFile));
+            tailEnd += size;
+            tail.putAll(pending);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Returns the IDs, in sorted order, of the commits filed under every one
+     * of KEYS (or of all commits if there are no KEYS) whose messages pass
+     * CHECK.
+     */
+    private List<String> search(List<Integer> keys, Predicate<String> check) {
+        load();
+        TreeSet<String> result = new TreeSet<>();
+        for (Map<String, String> messages : List.of(tail, pending)) {
+            for (Map.Entry<String, String> c : messages.entrySet()) {
+                if (check.test(c.getValue())) {
+                    result.add(c.getKey());
+                }
+            }
+        }
+        if (index == null) {
+            return new ArrayList<>(result);
+        }
+        int[] positions = null;
+        for (int key : new LinkedHashSet<>(keys)) {
+            positions = positions == null ? postings(key) : intersect(positions, postings(key));
+        }
+        if (positions == null) {
+            positions = new int[count];
+            Arrays.setAll(positions, i -> i);
+        }
+        for (int k : positions) {
+            String id = idAt(k);
+            if (check.test(commits.get(id).getMessage())) {
+                result.add(id);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns the positions of the commits filed under KEY in the
+     * message-index file, in increasing order.
+     */
+    private int[] postings(int key) {
+        int top = key >>> 23;
+        int lo = top == 0 ? 0 : index.getInt(fanoutOffset + (top - 1) * 4);
+        int hi = index.getInt(fanoutOffset + top * 4);
+        // Binary search for the first posting of KEY
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index.getInt(postingsOffset + mid * 8) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int end = lo;
+        int limit = index.getInt(fanoutOffset + top * 4);
+        while (end < limit && index.getInt(postingsOffset + end * 8) == key) {
+            end += 1;
+        }
+        int[] result = new int[end - lo];
+        for (int i = lo; i < end; i += 1) {
+            result[i - lo] = index.getInt(postingsOffset + i * 8 + 4);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values found in both increasing arrays A and B.
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] < b[j]) {
+                i += 1;
+            } else if (a[i] > b[j]) {
+                j += 1;
+            } else {
+                result[n] = a[i];
+                n += 1;
+                i += 1;
+                j += 1;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Returns the ID at position K of the message-index file.
+     */
+    private String idAt(int k) {
+        byte[] id = new byte[Pack.ID_BYTES];
+        index.get(MAGIC.length + 8 + k * Pack.ID_BYTES, id);
+        return Pack.toHex(id, 0);
+    }
+
+    /**
+     * Maps the message-index file and reads the tail file, if not done yet.
+     * If neither exists, every commit of the store is added instead.
+     */
+    private void load() {
+        if (tail != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        tail = new LinkedHashMap<>();
+        tailEnd = 0;
+        if (file.isFile()) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                byte[] magic = new byte[MAGIC.length];
+                if (mapped.limit() < MAGIC.length + 8) {
+                    throw error("Corrupt message index.");
+                }
+                mapped.get(0, magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw error("Corrupt message index.");
+                }
+                if (mapped.getInt(MAGIC.length) > VERSION) {
+                    throw error("The message index was written by a newer version of Gitlet.");
+                }
+                count = mapped.getInt(MAGIC.length + 4);
+                int postingCount = MAGIC.length + 8 + count * Pack.ID_BYTES;
+                fanoutOffset = postingCount + 4;
+                postingsOffset = fanoutOffset + 256 * 4;
+                if (mapped.limit() < postingsOffset || mapped.limit()
+                        != postingsOffset + (long) mapped.getInt(postingCount) * 8) {
+                    throw error("Corrupt message index.");
+                }
+                index = mapped;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        if (tailFile.isFile()) {
+            ByteBuffer in = ByteBuffer.wrap(readContents(tailFile));
+            while (in.remaining() >= Pack.ID_BYTES + 4) {
+                byte[] id = new byte[Pack.ID_BYTES];
+                in.get(id);
+                int len = in.getInt();
+                if (len < 0 || len > in.remaining()) {
+                    break;
+                }
+                tail.put(Pack.toHex(id, 0), new String(in.array(), in.position(), len,
+                        StandardCharsets.UTF_8));
+                in.position(in.position() + len);
+                tailEnd = in.position();
+            }
+        } else if (index == null) {
+            for (String id : store.commitIDs()) {
+                pending.put(id, commits.get(id).getMessage());
+            }
+        }
+        trace("message index", start);
+    }
+
+    /**
+     * Writes every commit of the index to a new message-index file, through
+     * a synced temporary file and a rename, and deletes the tail file.
+     */
+    private void rewrite() {
+        List<String> ids = new ArrayList<>();
+        int old = index == null ? 0 : count;
+        for (int k = 0; k < old; k += 1) {
+            ids.add(idAt(k));
+        }
+        long[] postingList = new long[0];
+        int n = 0;
+        if (index != null) {
+            int total = index.getInt(fanoutOffset - 4);
+            postingList = new long[total];
+            for (int i = 0; i < total; i += 1) {
+                postingList[n] = packPosting(index.getInt(postingsOffset + i * 8),
+                        index.getInt(postingsOffset + i * 8 + 4));
+                n += 1;
+            }
+        }
+        for (Map<String, String> messages : List.of(tail, pending)) {
+            for (Map.Entry<String, String> c : messages.entrySet()) {
+                Set<Integer> keys = keys(c.getValue());
+                if (n + keys.size() > postingList.length) {
+                    postingList = Arrays.copyOf(postingList,
+                            Math.max(2 * postingList.length, n + keys.size()));
+                }
+                for (int key : keys) {
+                    postingList[n] = packPosting(key, ids.size());
+                    n += 1;
+                }
+                ids.add(c.getKey());
+            }
+        }
+        Arrays.sort(postingList, 0, n);
+
+        int[] fanout = new int[256];
+        for (int i = 0; i < n; i += 1) {
+            fanout[(int) (postingList[i] >>> 55)] += 1;
+        }
+        ByteBuffer out = ByteBuffer.allocate(MAGIC.length + 8 + ids.size() * Pack.ID_BYTES
+                + 4 + 256 * 4 + n * 8);
+        out.put(MAGIC).putInt(VERSION).putInt(ids.size());
+        for (String id : ids) {
+            out.put(Pack.fromHex(id));
+        }
+        out.putInt(n);
+        int total = 0;
+        for (int f : fanout) {
+            total += f;
+            out.putInt(total);
+        }
+        for (int i = 0; i < n; i += 1) {
+            out.putLong(postingList[i]);
+        }
+        File tmp = join(file.getParentFile(), ".tmp-message-index");
+        try (OutputStream o = new FileOutputStream(tmp)) {
+            o.write(out.array());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        sync(List.of(tmp));
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // Commits left in the tail by a crash here are also in the new file.
+        tailFile.delete();
+        syncDirectories(List.of(file));
+        index = null;
+        tail = null;
+    }
+
+    /**
+     * Returns a posting of KEY and commit position K as one long, which
+     * sorts by key and then position.
+     */
+    private static long packPosting(int key, int k) {
+        return ((long) key << 32) | k;
+    }
+
+    /**
+     * Returns the keys MESSAGE is filed under.
+     */
+    private static Set<Integer> keys(String message) {
+        Set<Integer> result = new LinkedHashSet<>();
+        result.add(key(MESSAGE, message));
+        String lower = message.toLowerCase(Locale.ROOT);
+        for (String word : words(lower)) {
+            result.add(key(WORD, word));
+        }
+        for (String piece : pieces(lower)) {
+            result.add(key(PIECE, piece));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the key of TEXT as a key of kind KIND. Keys are never
+     * negative, so they sort the same as signed and unsigned ints.
+     */
+    private static int key(char kind, String text) {
+        int h = (kind + text).hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the words of TEXT: its runs of letters and digits.
+     */
+    private static List<String> words(String text) {
+        List<String> result = new ArrayList<>();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns every piece of PIECE_LENGTH characters of TEXT.
+     */
+    private static Set<String> pieces(String text) {
+        Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i + PIECE_LENGTH <= text.length(); i += 1) {
+            result.add(text.substring(i, i + PIECE_LENGTH));
+        }
+        return result;
+    }
+}
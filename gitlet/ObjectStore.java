@@ -0,0 +1,1054 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * The objects of one Gitlet repository. Objects are written loose, one file
+ * per object under commits/, trees/ and blobs/, and the repack command folds them into
+ * a packfile under packs/. Readers go through this class, so they do not care
+ * which of the two places an object currently lives in.
+ *
+ * Loose objects are spread over subdirectories named by the first two hex
+ * digits of their IDs, as in blobs/3f/a1c9..., so that no directory grows
+ * too large and the objects starting with a prefix are listed from a single
+ * subdirectory. Objects written by earlier versions directly under commits/
+ * and blobs/ are still read from there.
+ *
+ * New loose objects are written to temporary files, which commit syncs
+ * together and then renames into place; until then this store reads them
+ * from their temporary files.
+ *
+ * A loose object is deflated with zlib and starts with a header giving its
+ * type and size, as in "blob 1234" followed by a zero byte. Blob IDs are the
+ * SHA-1 of the contents alone, without the header. Large blobs that deflate
+ * barely at all, such as images and archives, are stored as their bare
+ * contents instead, which checkout copies or links into place whole.
+ *
+ * @author Daniel Zhao
+ */
+class ObjectStore {
+
+    /**
+     * Number of recently packed objects that are tried as delta bases.
+     */
+    private static final int WINDOW = 10;
+    /**
+     * Longest chain of deltas allowed before an object is stored whole.
+     */
+    private static final int MAX_DEPTH = 50;
+    /**
+     * Objects larger than this are never stored as or used for deltas.
+     */
+    private static final int MAX_DELTA_SIZE = 16 << 20;
+    /**
+     * Size of the buffers objects are streamed through.
+     */
+    private static final int BUFFER_SIZE = 64 << 10;
+    /**
+     * Longest header a loose object may start with.
+     */
+    private static final int MAX_HEADER = 32;
+    /**
+     * Blobs at least this large whose first BUFFER_SIZE bytes deflate by
+     * less than a sixteenth are stored as they are.
+     */
+    private static final long RAW_MIN_SIZE = 1 << 20;
+    /**
+     * Age in milliseconds after which repack deletes a temporary file as
+     * left by a process that was killed.
+     */
+    private static final long STALE_TEMP_AGE = 24 * 60 * 60 * 1000L;
+    /**
+     * Type names recorded in the headers of loose objects.
+     */
+    private static final String COMMIT = "commit";
+    private static final String TREE = "tree";
+    private static final String BLOB = "blob";
+
+    /**
+     * Loose commit directory.
+     */
+    private final File commits;
+    /**
+     * Loose tree directory.
+     */
+    private final File trees;
+    /**
+     * Loose blob directory.
+     */
+    private final File blobs;
+    /**
+     * Directory holding packs.
+     */
+    private final File packDir;
+    /**
+     * Packs of this repository, loaded on first use.
+     */
+    private List<Pack> packs;
+    /**
+     * Objects written since the last commit: the finished temporary file of
+     * each by the loose file it is to become.
+     */
+    private final Map<File, File> pending = new LinkedHashMap<>();
+
+    /**
+     * The object store of the repository whose .gitlet directory is ROOT.
+     */
+    ObjectStore(File root) {
+        commits = join(root, "commits");
+        trees = join(root, "trees");
+        blobs = join(root, "blobs");
+        packDir = join(root, "packs");
+    }
+
+    /**
+     * Returns the contents of blob ID, or null if there is no such blob.
+     */
+    byte[] readBlob(String id) {
+        return read(Pack.BLOB, id);
+    }
+
+    /**
+     * Returns a stream over the contents of blob ID, inflating them as they
+     * are read, or null if there is no such blob.
+     */
+    InputStream openBlob(String id) {
+        if (id == null) {
+            return null;
+        }
+        File loose = loose(Pack.BLOB, id);
+        if (loose.isFile()) {
+            return openLoose(loose, Pack.BLOB, id);
+        }
+        for (Pack p : packs()) {
+            InputStream in = p.open(Pack.BLOB, id);
+            if (in != null) {
+                return in;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes file TARGET hold the contents of blob ID, replacing whatever it
+     * held. TARGET is removed first rather than truncated, as it may be a
+     * link to a stored blob. A blob stored as is is copied by the file
+     * system, which may clone it, without passing through memory; if LINK,
+     * TARGET is made a hard link to it instead where the file system
+     * allows. Such blobs are read-only, so that the link cannot be used to
+     * change them, and are checked before TARGET, which may be such a
+     * link, is removed. Other blobs are inflated into TARGET.
+     */
+    void checkoutBlob(String id, File target, boolean link) {
+        File loose = loose(Pack.BLOB, id);
+        try {
+            boolean raw = loose.isFile() && !isDeflated(loose, BLOB);
+            if (raw) {
+                checkUnchanged(loose, id);
+            }
+            Files.deleteIfExists(target.toPath());
+            if (raw) {
+                if (link && linked(loose, target)) {
+                    return;
+                }
+                try (FileChannel in = FileChannel.open(loose.toPath());
+                     FileChannel out = FileChannel.open(target.toPath(),
+                             StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    long size = in.size();
+                    long done = 0;
+                    while (done < size) {
+                        done += in.transferTo(done, size - done, out);
+                    }
+                }
+                return;
+            }
+            try (InputStream contents = openBlob(id)) {
+                if (contents == null) {
+                    throw error("No blob %s.", id);
+                }
+                Files.copy(contents, target.toPath());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Tries to make TARGET a hard link to the loose blob SOURCE, and returns
+     * whether it did.
+     */
+    private static boolean linked(File source, File target) {
+        try {
+            source.setReadOnly();
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException excp) {
+            // Another file system, or one without links; copy instead.
+            return false;
+        }
+    }
+
+    /**
+     * Returns the size of the contents of blob ID, or -1 if there is no
+     * such blob.
+     */
+    long blobSize(String id) {
+        return size(Pack.BLOB, id);
+    }
+
+    /**
+     * Returns the stored form of commit ID, or null if there is no such commit.
+     */
+    byte[] readCommit(String id) {
+        return read(Pack.COMMIT, id);
+    }
+
+    /**
+     * Returns the stored form of tree ID, or null if there is no such tree.
+     */
+    byte[] readTree(String id) {
+        return read(Pack.TREE, id);
+    }
+
+    /**
+     * Returns whether blob ID exists.
+     */
+    boolean hasBlob(String id) {
+        return has(Pack.BLOB, id);
+    }
+
+    /**
+     * Returns whether commit ID exists.
+     */
+    boolean hasCommit(String id) {
+        return has(Pack.COMMIT, id);
+    }
+
+    /**
+     * Returns whether tree ID exists.
+     */
+    boolean hasTree(String id) {
+        return has(Pack.TREE, id);
+    }
+
+    /**
+     * Stores CONTENTS as a blob and returns its ID.
+     */
+    String writeBlob(byte[] contents) {
+        return writeBlob(new ByteArrayInputStream(contents), contents.length);
+    }
+
+    /**
+     * Stores the contents of SOURCE as a blob and returns its ID. The file
+     * is hashed and deflated in the same pass over its contents.
+     */
+    String writeBlob(File source) {
+        try (InputStream in = new FileInputStream(source)) {
+            return writeBlob(in, source.length());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Stores the SIZE bytes read from IN as a blob and returns its ID. The
+     * first buffer read decides whether it is deflated or stored as is.
+     */
+    private String writeBlob(InputStream in, long size) {
+        MessageDigest md = sha1Digest();
+        File tmp = tempFile(blobs);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int n = in.readNBytes(buffer, 0, buffer.length);
+            boolean raw = size >= RAW_MIN_SIZE && incompressible(buffer, n);
+            try (OutputStream out = raw
+                    ? new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)
+                    : deflating(tmp, BLOB, size)) {
+                long total = 0;
+                while (n > 0) {
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    total += n;
+                    n = in.read(buffer);
+                }
+                if (total != size) {
+                    throw new IOException("File changed while it was being stored.");
+                }
+            }
+            if (raw) {
+                tmp.setReadOnly();
+            }
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        String id = Pack.toHex(md.digest(), 0);
+        install(tmp, Pack.BLOB, id);
+        return id;
+    }
+
+    /**
+     * Returns whether the first LEN bytes of DATA deflate by less than a
+     * sixteenth, and could not be mistaken for a deflated object when
+     * stored as they are.
+     */
+    private static boolean incompressible(byte[] data, int len) {
+        int cmf = len > 0 ? data[0] & 0xff : 0;
+        int flg = len > 1 ? data[1] & 0xff : 0;
+        if (cmf == 0x78 && ((cmf << 8) | flg) % 31 == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, len);
+            deflater.finish();
+            byte[] out = new byte[BUFFER_SIZE];
+            long deflated = 0;
+            while (!deflater.finished()) {
+                deflated += deflater.deflate(out);
+            }
+            return deflated > len - len / 16;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Stores DATA as commit ID.
+     */
+    void writeCommit(String id, byte[] data) {
+        if (!hasCommit(id)) {
+            install(deflated(commits, COMMIT, data), Pack.COMMIT, id);
+        }
+    }
+
+    /**
+     * Stores DATA as tree ID.
+     */
+    void writeTree(String id, byte[] data) {
+        if (!hasTree(id)) {
+            install(deflated(trees, TREE, data), Pack.TREE, id);
+        }
+    }
+
+    /**
+     * Stores DATA as commit ID, replacing any loose copy stored in another
+     * form. Packed copies are left alone; the loose one takes precedence.
+     */
+    void replaceCommit(String id, byte[] data) {
+        File target = shard(commits, id);
+        File old = pending.put(target, deflated(commits, COMMIT, data));
+        if (old != null) {
+            old.delete();
+        }
+    }
+
+    /**
+     * Makes every object written since the last commit durable and visible
+     * to other readers: their contents are synced, all of them before the
+     * first rename, and then the directories they were renamed in.
+     */
+    void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        sync(pending.values());
+        // New subdirectories are synced in their parents along with the renames.
+        List<File> created = new ArrayList<>();
+        for (File target : pending.keySet()) {
+            if (target.getParentFile().mkdir()) {
+                created.add(target.getParentFile());
+            }
+        }
+        syncDirectories(created);
+        try {
+            for (Map.Entry<File, File> object : pending.entrySet()) {
+                Files.move(object.getValue().toPath(), object.getKey().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        syncDirectories(pending.keySet());
+        pending.clear();
+    }
+
+    /**
+     * Returns a temporary file in DIR holding DATA as a deflated object of
+     * type TYPE.
+     */
+    private static File deflated(File dir, String type, byte[] data) {
+        File tmp = tempFile(dir);
+        try (OutputStream out = deflating(tmp, type, data.length)) {
+            out.write(data);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return tmp;
+    }
+
+    /**
+     * Copies blob ID from SOURCE into this store, unless it holds the blob
+     * already. A loose blob, deflated or stored as is, is copied as it is
+     * stored, without inflating it.
+     */
+    void copyBlob(ObjectStore source, String id) {
+        if (hasBlob(id)) {
+            return;
+        }
+        File loose = source.loose(Pack.BLOB, id);
+        if (loose.isFile()) {
+            File tmp = tempFile(blobs);
+            try {
+                boolean raw = !isDeflated(loose, BLOB);
+                if (raw) {
+                    checkUnchanged(loose, id);
+                }
+                Files.copy(loose.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (raw) {
+                    tmp.setReadOnly();
+                }
+            } catch (IOException excp) {
+                tmp.delete();
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            install(tmp, Pack.BLOB, id);
+        } else {
+            try (InputStream in = source.openBlob(id)) {
+                writeBlob(in, source.blobSize(id));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the IDs of all commits, loose or packed, in sorted order.
+     */
+    List<String> commitIDs() {
+        return new ArrayList<>(ids(Pack.COMMIT));
+    }
+
+    /**
+     * Returns the IDs of all commits starting with PREFIX, in sorted order.
+     * Only the loose subdirectory named by the first two digits of PREFIX is
+     * listed, and packs are searched through their fanout tables.
+     */
+    List<String> commitIDsWithPrefix(String prefix) {
+        return new ArrayList<>(idsWithPrefix(Pack.COMMIT, prefix));
+    }
+
+    /**
+     * Returns the IDs of all objects of type TYPE, loose or packed.
+     */
+    private TreeSet<String> ids(int type) {
+        TreeSet<String> result = new TreeSet<>(objectNames(dir(type)));
+        for (File object : pending.keySet()) {
+            if (object.getParentFile().getParentFile().equals(dir(type))) {
+                result.add(object.getParentFile().getName() + object.getName());
+            }
+        }
+        for (Pack p : packs()) {
+            result.addAll(p.ids(type));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the IDs of all objects of type TYPE starting with PREFIX,
+     * loose or packed.
+     */
+    private TreeSet<String> idsWithPrefix(int type, String prefix) {
+        TreeSet<String> result = new TreeSet<>();
+        if (!prefix.matches("[0-9a-f]{0,40}")) {
+            return result;
+        }
+        File dir = dir(type);
+        if (prefix.length() < 2) {
+            for (String id : objectNames(dir)) {
+                if (id.startsWith(prefix)) {
+                    result.add(id);
+                }
+            }
+        } else {
+            String shard = prefix.substring(0, 2);
+            String[] names = join(dir, shard).list((d, name) ->
+                    name.length() == UID_LENGTH - 2 && name.startsWith(prefix.substring(2)));
+            for (String name : names == null ? new String[0] : names) {
+                result.add(shard + name);
+            }
+            String[] legacy = dir.list((d, name) ->
+                    name.length() == UID_LENGTH && name.startsWith(prefix));
+            result.addAll(Arrays.asList(legacy == null ? new String[0] : legacy));
+        }
+        for (File object : pending.keySet()) {
+            String id = object.getParentFile().getName() + object.getName();
+            if (object.getParentFile().getParentFile().equals(dir) && id.startsWith(prefix)) {
+                result.add(id);
+            }
+        }
+        for (Pack p : packs()) {
+            result.addAll(p.ids(type, prefix));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the directory of loose objects of type TYPE.
+     */
+    private File dir(int type) {
+        switch (type) {
+            case Pack.COMMIT:
+                return commits;
+            case Pack.TREE:
+                return trees;
+            default:
+                return blobs;
+        }
+    }
+
+    /**
+     * Returns the name recorded in loose headers for objects of type TYPE.
+     */
+    private static String typeName(int type) {
+        switch (type) {
+            case Pack.COMMIT:
+                return COMMIT;
+            case Pack.TREE:
+                return TREE;
+            default:
+                return BLOB;
+        }
+    }
+
+    /**
+     * Returns the IDs of the loose objects in DIR and its subdirectories,
+     * leaving out temporary files of writes in progress.
+     */
+    private static List<String> objectNames(File dir) {
+        List<String> result = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return result;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.length() == UID_LENGTH && !name.startsWith("tmp-")) {
+                result.add(name);
+            } else if (name.length() == 2) {
+                List<String> sharded = plainFilenamesIn(join(dir, name));
+                for (String rest : sharded == null ? List.<String>of() : sharded) {
+                    if (rest.length() == UID_LENGTH - 2) {
+                        result.add(name + rest);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private byte[] read(int type, String id) {
+        if (id == null) {
+            return null;
+        }
+        File loose = loose(type, id);
+        if (loose.isFile()) {
+            try (InputStream in = openLoose(loose, type, id)) {
+                return in.readAllBytes();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return readPacked(type, id);
+    }
+
+    /**
+     * Returns the size of object ID of type TYPE, or -1 if it is absent.
+     * Only the header of a loose object is read.
+     */
+    private long size(int type, String id) {
+        if (id == null) {
+            return -1;
+        }
+        File loose = loose(type, id);
+        if (loose.isFile()) {
+            try (InputStream in = inflated(loose, typeName(type))) {
+                return in == null ? loose.length() : ((Loose) in).size;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        for (Pack p : packs()) {
+            long size = p.size(type, id);
+            if (size >= 0) {
+                return size;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] readPacked(int type, String id) {
+        for (Pack p : packs()) {
+            byte[] data = p.read(type, id);
+            if (data != null) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a stream over the contents of the loose object FILE, object ID
+     * of type TYPE. Files written before loose objects were deflated, and
+     * large blobs, hold the bare contents and are returned as they are.
+     */
+    private static InputStream openLoose(File file, int type, String id) {
+        try {
+            InputStream in = inflated(file, typeName(type));
+            if (in != null) {
+                return in;
+            }
+            if (type == Pack.BLOB) {
+                checkUnchanged(file, id);
+            }
+            return new BufferedInputStream(new FileInputStream(file));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Throws if FILE, blob ID stored as is, no longer holds that blob. Such
+     * blobs may be checked out as hard links, making the working file and
+     * the stored copy one file, so that editing it in place, as root or
+     * after making it writable, changes the blob. They are stored
+     * read-only, and hashed again only if linked or writable.
+     */
+    private static void checkUnchanged(File file, String id) throws IOException {
+        Path path = file.toPath();
+        try {
+            if ((Integer) Files.getAttribute(path, "unix:nlink") == 1
+                    && !Files.getPosixFilePermissions(path)
+                            .contains(PosixFilePermission.OWNER_WRITE)) {
+                return;
+            }
+        } catch (UnsupportedOperationException excp) {
+            // No link counts or permissions to go by, so always hashed.
+        }
+        MessageDigest md = sha1Digest();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        }
+        if (!Pack.toHex(md.digest(), 0).equals(id)) {
+            throw error("Blob %s was changed through a file linked to it.", id);
+        }
+    }
+
+    /**
+     * Returns whether FILE is a deflated loose object of type TYPE.
+     */
+    private static boolean isDeflated(File file, String type) {
+        try (InputStream in = inflated(file, type)) {
+            return in != null;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * If FILE is a deflated loose object of type TYPE, returns a stream
+     * positioned just past its header. Otherwise, including when FILE only
+     * starts like a deflated object but its header does not inflate, returns
+     * null.
+     */
+    private static InputStream inflated(File file, String type) throws IOException {
+        BufferedInputStream raw = new BufferedInputStream(new FileInputStream(file));
+        raw.mark(2);
+        int cmf = raw.read();
+        int flg = raw.read();
+        raw.reset();
+        // Only a zlib header can start a deflated object.
+        if (cmf != 0x78 || flg < 0 || ((cmf << 8) | flg) % 31 != 0) {
+            raw.close();
+            return null;
+        }
+        InputStream in = new InflaterInputStream(raw);
+        try {
+            StringBuilder header = new StringBuilder();
+            int c;
+            while ((c = in.read()) > 0 && header.length() < MAX_HEADER) {
+                header.append((char) c);
+            }
+            if (c == 0 && header.toString().matches(type + " \\d+")) {
+                return new Loose(in, Long.parseLong(header.substring(type.length() + 1)));
+            }
+        } catch (IOException excp) {
+            // Bare contents that start like a zlib stream, such as "x^2",
+            // fail to inflate or end early; fall through.
+        }
+        in.close();
+        return null;
+    }
+
+    /**
+     * Returns a stream that deflates into TMP, starting with the header of
+     * an object of type TYPE holding SIZE bytes.
+     */
+    private static OutputStream deflating(File tmp, String type, long size) throws IOException {
+        OutputStream out = new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        out.write((type + " " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+        return out;
+    }
+
+    /**
+     * Returns a new temporary file in DIR.
+     */
+    private static File tempFile(File dir) {
+        try {
+            dir.mkdirs();
+            return File.createTempFile("tmp-", null, dir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Records the finished object TMP as becoming loose object ID of type
+     * TYPE on commit. Objects never change once written, so if the object
+     * exists, loose or packed, or is already pending, it is kept and TMP
+     * discarded.
+     */
+    private void install(File tmp, int type, String id) {
+        if (has(type, id)) {
+            tmp.delete();
+        } else {
+            pending.put(shard(dir(type), id), tmp);
+        }
+    }
+
+    /**
+     * Returns the file holding loose object ID of type TYPE: its temporary
+     * file if it was written since the last commit, its file directly under
+     * the type's directory if an earlier version wrote it there, and
+     * otherwise the place it would be stored at.
+     */
+    private File loose(int type, String id) {
+        File target = shard(dir(type), id);
+        File tmp = pending.get(target);
+        if (tmp != null) {
+            return tmp;
+        }
+        if (!target.isFile()) {
+            File legacy = join(dir(type), id);
+            if (legacy.isFile()) {
+                return legacy;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Returns the place of loose object ID in DIR: under the subdirectory
+     * named by its first two digits.
+     */
+    private static File shard(File dir, String id) {
+        if (id.length() <= 2) {
+            return join(dir, id);
+        }
+        return join(dir, id.substring(0, 2), id.substring(2));
+    }
+
+    /**
+     * Deletes loose object ID in DIR, wherever it is stored.
+     */
+    private static void deleteLoose(File dir, String id) {
+        File target = shard(dir, id);
+        target.delete();
+        // Only succeeds once the subdirectory is empty.
+        target.getParentFile().delete();
+        join(dir, id).delete();
+    }
+
+    /**
+     * Returns a new SHA-1 digest.
+     */
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    private boolean has(int type, String id) {
+        if (id == null) {
+            return false;
+        }
+        if (loose(type, id).isFile()) {
+            return true;
+        }
+        for (Pack p : packs()) {
+            if (p.contains(type, id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the packs of this repository.
+     */
+    private synchronized List<Pack> packs() {
+        if (packs == null) {
+            long start = System.nanoTime();
+            packs = new ArrayList<>();
+            for (File idx : packIndexes()) {
+                packs.add(new Pack(idx));
+            }
+            trace("packs", start);
+        }
+        return packs;
+    }
+
+    /**
+     * Returns the index files of the packs now in the pack directory.
+     */
+    private List<File> packIndexes() {
+        List<File> result = new ArrayList<>();
+        List<String> names = plainFilenamesIn(packDir);
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("pack-") && name.endsWith(".idx")) {
+                    result.add(join(packDir, name));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prepares a long-running process for its next command: discards the
+     * objects written since the last commit, and forgets the packs if
+     * another process added or removed any since they were loaded.
+     */
+    void refresh() {
+        discard();
+        if (packs != null) {
+            List<File> loaded = new ArrayList<>();
+            for (Pack p : packs) {
+                loaded.add(p.indexFile());
+            }
+            if (!loaded.equals(packIndexes())) {
+                forgetPacks();
+            }
+        }
+    }
+
+    /** Deletes the objects written since the last commit. */
+    void discard() {
+        for (File tmp : pending.values()) {
+            tmp.delete();
+        }
+        pending.clear();
+    }
+
+    /**
+     * Deletes the temporary files that processes killed before committing
+     * left behind. Only those older than STALE_TEMP_AGE are deleted, so that
+     * the writes of a process still running are left alone.
+     */
+    private void deleteStaleTemps() {
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_AGE;
+        for (File dir : new File[] {commits, trees, blobs, packDir}) {
+            File[] temps = dir.listFiles((d, name) -> name.startsWith("tmp-"));
+            if (temps == null) {
+                continue;
+            }
+            for (File tmp : temps) {
+                if (tmp.lastModified() < cutoff) {
+                    tmp.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the packs loaded and forgets them, so that they are loaded
+     * again on next use.
+     */
+    private synchronized void forgetPacks() {
+        if (packs != null) {
+            for (Pack p : packs) {
+                p.close();
+            }
+            packs = null;
+        }
+    }
+
+    /**
+     * Packs every object of this repository into a single new pack and
+     * removes the loose objects and old packs it replaces. COMMITORDER lists
+     * commits in the order they should be packed and BLOBORDER does the same
+     * for blobs, successive versions of one file next to each other, so that
+     * neighbours make good delta bases. Objects missing from either list are
+     * packed after the listed ones.
+     */
+    void repack(List<String> commitOrder, List<String> blobOrder) {
+        deleteStaleTemps();
+        Set<String> allCommits = new LinkedHashSet<>(commitOrder);
+        allCommits.addAll(ids(Pack.COMMIT));
+        Set<String> allTrees = ids(Pack.TREE);
+        Set<String> allBlobs = new LinkedHashSet<>(blobOrder);
+        allBlobs.addAll(ids(Pack.BLOB));
+        allCommits.removeIf(id -> !hasCommit(id));
+        allBlobs.removeIf(id -> !hasBlob(id));
+        if (allCommits.isEmpty() && allTrees.isEmpty() && allBlobs.isEmpty()) {
+            return;
+        }
+        // Loose objects are deleted below, so any still pending go in place first.
+        commit();
+
+        packDir.mkdir();
+        Pack.Writer writer = new Pack.Writer(packDir);
+        packObjects(writer, Pack.COMMIT, allCommits);
+        packObjects(writer, Pack.TREE, allTrees);
+        packObjects(writer, Pack.BLOB, allBlobs);
+        File idx = writer.finish();
+
+        for (Pack p : packs()) {
+            File oldIdx = p.indexFile();
+            if (!oldIdx.equals(idx)) {
+                oldIdx.delete();
+                p.dataFile().delete();
+            }
+        }
+        for (String id : allCommits) {
+            deleteLoose(commits, id);
+        }
+        for (String id : allTrees) {
+            deleteLoose(trees, id);
+        }
+        for (String id : allBlobs) {
+            deleteLoose(blobs, id);
+        }
+        forgetPacks();
+    }
+
+    /**
+     * Writes the objects of type TYPE named by IDS to WRITER, each as a delta
+     * against one of the previous WINDOW objects when that saves enough space.
+     */
+    private void packObjects(Pack.Writer writer, int type, Collection<String> ids) {
+        Deque<Candidate> window = new ArrayDeque<>();
+        for (String id : ids) {
+            long size = size(type, id);
+            if (size > MAX_DELTA_SIZE) {
+                // Too large for deltas either way, so it is streamed in whole.
+                try (InputStream in = type == Pack.BLOB ? openBlob(id)
+                        : new ByteArrayInputStream(read(type, id))) {
+                    writer.add(id, type, in, size);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                continue;
+            }
+            byte[] data = read(type, id);
+            Candidate best = null;
+            byte[] bestDelta = null;
+            if (data.length <= MAX_DELTA_SIZE) {
+                for (Candidate base : window) {
+                    if (base.depth >= MAX_DEPTH || base.data.length > MAX_DELTA_SIZE) {
+                        continue;
+                    }
+                    byte[] delta = Delta.create(base.data, data);
+                    if (delta.length < data.length / 2
+                            && (bestDelta == null || delta.length < bestDelta.length)) {
+                        best = base;
+                        bestDelta = delta;
+                    }
+                }
+            }
+            int depth = 0;
+            if (best != null) {
+                writer.addDelta(id, type, best.id, bestDelta);
+                depth = best.depth + 1;
+            } else {
+                writer.add(id, type, data);
+            }
+            window.addFirst(new Candidate(id, data, depth));
+            if (window.size() > WINDOW) {
+                window.removeLast();
+            }
+        }
+    }
+
+    /**
+     * The inflated contents of a loose object, after its header.
+     */
+    private static class Loose extends FilterInputStream {
+        /**
+         * Size of the contents, as given by the header.
+         */
+        private final long size;
+
+        Loose(InputStream in, long size) {
+            super(in);
+            this.size = size;
+        }
+    }
+
+    /**
+     * A recently packed object that later objects may be stored as deltas against.
+     */
+    private static class Candidate {
+        private final String id;
+        private final byte[] data;
+        private final int depth;
+
+        Candidate(String id, byte[] data, int depth) {
+            this.id = id;
+            this.data = data;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * A packfile: many objects stored in one data file, each either whole or as a
+ * delta against another object of the same pack, plus an index file mapping
+ * object IDs to their offsets in the data file.
+ *
+ * The data file is the magic "GPAK", a version number, and then one entry per
+ * object: a type byte, the inflated size as a varint, the 20-byte base ID when
+ * the entry is a delta, and the deflated payload. It ends with the SHA-1 of
+ * everything before it, which also names the pack.
+ *
+ * The index file is the magic "GIDX", a version number, a 256-entry fanout
+ * table (entry i counts the objects whose first ID byte is at most i), the
+ * sorted 20-byte object IDs, one resolved type byte per object, one 8-byte
+ * offset per object, and the checksum of the data file.
+ *
+ * @author Daniel Zhao
+ */
+class Pack {
+
+    /**
+     * Object types, as stored in pack entries and index files.
+     */
+    static final int COMMIT = 1;
+    static final int TREE = 2;
+    static final int BLOB = 3;
+    /**
+     * Entry type of an object stored as a delta against another object.
+     */
+    private static final int DELTA = 7;
+
+    private static final byte[] PACK_MAGIC = "GPAK".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDX_MAGIC = "GIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    /**
+     * Size in bytes of a binary object ID.
+     */
+    static final int ID_BYTES = 20;
+    /**
+     * Size of the buffers entries are streamed through.
+     */
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * The index file of this pack.
+     */
+    private final File idxFile;
+    /**
+     * The data file of this pack.
+     */
+    private final File packFile;
+    /**
+     * Fanout table read from the index.
+     */
+    private final int[] fanout = new int[256];
+    /**
+     * Sorted binary object IDs, ID_BYTES apiece.
+     */
+    private final byte[] ids;
+    /**
+     * Resolved type of each object, parallel to IDS.
+     */
+    private final byte[] types;
+    /**
+     * Offset of each object's entry in the data file, parallel to IDS.
+     */
+    private final long[] offsets;
+    /**
+     * Open channel on the data file, created on first read.
+     */
+    private FileChannel channel;
+
+    /**
+     * Opens the pack whose index file is IDXFILE.
+     */
+    Pack(File idxFile) {
+        this.idxFile = idxFile;
+        String name = idxFile.getName();
+        packFile = join(idxFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        ByteBuffer in = ByteBuffer.wrap(readContents(idxFile));
+        byte[] magic = new byte[IDX_MAGIC.length];
+        in.get(magic);
+        if (!Arrays.equals(magic, IDX_MAGIC) || in.getInt() != VERSION) {
+            throw error("Unrecognized pack index %s.", name);
+        }
+        for (int i = 0; i < 256; i += 1) {
+            fanout[i] = in.getInt();
+        }
+        int count = fanout[255];
+        ids = new byte[count * ID_BYTES];
+        in.get(ids);
+        types = new byte[count];
+        in.get(types);
+        offsets = new long[count];
+        for (int i = 0; i < count; i += 1) {
+            offsets[i] = in.getLong();
+        }
+    }
+
+    /**
+     * Returns the index file of this pack.
+     */
+    File indexFile() {
+        return idxFile;
+    }
+
+    /**
+     * Returns the data file of this pack.
+     */
+    File dataFile() {
+        return packFile;
+    }
+
+    /**
+     * Closes the data file if it was opened. It is opened again if the pack
+     * is read after.
+     */
+    synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * Returns the hexadecimal IDs of all objects of type TYPE in this pack, in sorted order.
+     */
+    List<String> ids(int type) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < offsets.length; i += 1) {
+            if (types[i] == type) {
+                result.add(toHex(ids, i * ID_BYTES));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the hexadecimal IDs of all objects of type TYPE in this pack
+     * that start with PREFIX, in sorted order. PREFIX must be lower-case hex.
+     */
+    List<String> ids(int type, String prefix) {
+        int lo = 0;
+        int hi = fanout[255];
+        if (prefix.length() >= 2) {
+            int first = Integer.parseInt(prefix.substring(0, 2), 16);
+            lo = first == 0 ? 0 : fanout[first - 1];
+            hi = fanout[first];
+        }
+        // Binary search for the first ID not below PREFIX
+        int end = hi;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (toHex(ids, mid * ID_BYTES).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (int i = lo; i < end; i += 1) {
+            String id = toHex(ids, i * ID_BYTES);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            if (types[i] == type) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether this pack holds an object of type TYPE named ID.
+     */
+    boolean contains(int type, String id) {
+        int k = find(id);
+        return k >= 0 && types[k] == type;
+    }
+
+    /**
+     * Returns the contents of the object of type TYPE named ID, or null if
+     * this pack does not hold it.
+     */
+    byte[] read(int type, String id) {
+        int k = find(id);
+        if (k < 0 || types[k] != type) {
+            return null;
+        }
+        return readAt(offsets[k]);
+    }
+
+    /**
+     * Returns a stream over the contents of the object of type TYPE named ID,
+     * or null if this pack does not hold it. An object stored whole is
+     * inflated from the data file as the stream is read; a delta is resolved
+     * in memory, which is bounded because only small objects get deltas.
+     */
+    InputStream open(int type, String id) {
+        int k = find(id);
+        if (k < 0 || types[k] != type) {
+            return null;
+        }
+        Entry e = entryAt(offsets[k]);
+        if (e.baseID != null) {
+            return new ByteArrayInputStream(readAt(offsets[k]));
+        }
+        try {
+            FileChannel ch = FileChannel.open(packFile.toPath()).position(e.dataOffset);
+            return new InflaterInputStream(
+                    new BufferedInputStream(Channels.newInputStream(ch)));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the size of the object of type TYPE named ID, or -1 if this
+     * pack does not hold it.
+     */
+    long size(int type, String id) {
+        int k = find(id);
+        if (k < 0 || types[k] != type) {
+            return -1;
+        }
+        Entry e = entryAt(offsets[k]);
+        return e.baseID == null ? e.size : readAt(offsets[k]).length;
+    }
+
+    /**
+     * Returns the index of ID in IDS, or -1 if it is absent.
+     */
+    private int find(String id) {
+        if (id == null || id.length() != 2 * ID_BYTES) {
+            return -1;
+        }
+        byte[] key = fromHex(id);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout[first - 1];
+        int hi = fanout[first] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = Arrays.compareUnsigned(ids, mid * ID_BYTES, (mid + 1) * ID_BYTES,
+                    key, 0, ID_BYTES);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The header of a pack entry: its payload size, the ID of its base if it
+     * is a delta, and where its deflated payload starts.
+     */
+    private static class Entry {
+        private long size;
+        private String baseID;
+        private long dataOffset;
+    }
+
+    /**
+     * Returns the header of the entry at OFFSET.
+     */
+    private synchronized Entry entryAt(long offset) {
+        try {
+            if (channel == null) {
+                channel = new RandomAccessFile(packFile, "r").getChannel();
+            }
+            ByteBuffer header = ByteBuffer.allocate(1 + 10 + ID_BYTES);
+            channel.read(header, offset);
+            byte[] h = header.array();
+            Entry e = new Entry();
+            int[] pos = {1};
+            e.size = Delta.readVarint(h, pos);
+            if (h[0] == DELTA) {
+                e.baseID = toHex(h, pos[0]);
+                pos[0] += ID_BYTES;
+            }
+            e.dataOffset = offset + pos[0];
+            return e;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the fully resolved contents of the entry at OFFSET.
+     */
+    private synchronized byte[] readAt(long offset) {
+        try {
+            Entry e = entryAt(offset);
+            String baseID = e.baseID;
+            byte[] data = new byte[(int) e.size];
+            Inflater inflater = new Inflater();
+            try {
+                InputStream in = new InflaterInputStream(
+                        Channels.newInputStream(channel.position(e.dataOffset)), inflater);
+                int n = 0;
+                while (n < data.length) {
+                    int r = in.read(data, n, data.length - n);
+                    if (r < 0) {
+                        throw error("Truncated entry in %s.", packFile.getName());
+                    }
+                    n += r;
+                }
+            } finally {
+                inflater.end();
+            }
+            if (baseID == null) {
+                return data;
+            }
+            int k = find(baseID);
+            if (k < 0) {
+                throw error("Missing delta base %s in %s.", baseID, packFile.getName());
+            }
+            return Delta.apply(readAt(offsets[k]), data);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the hexadecimal form of the ID_BYTES bytes of DATA at OFFSET.
+     */
+    static String toHex(byte[] data, int offset) {
+        StringBuilder result = new StringBuilder(2 * ID_BYTES);
+        for (int i = offset; i < offset + ID_BYTES; i += 1) {
+            result.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+            result.append(Character.forDigit(data[i] & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns the binary form of the hexadecimal ID.
+     */
+    static byte[] fromHex(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /**
+     * Builds a new pack in a directory. Entries are appended one at a time;
+     * a delta's base must already have been added.
+     */
+    static class Writer {
+        /**
+         * Directory the finished pack is placed in.
+         */
+        private final File dir;
+        /**
+         * Temporary data file being written.
+         */
+        private final File tmp;
+        /**
+         * Digest over everything written to the data file.
+         */
+        private final MessageDigest digest;
+        /**
+         * Data file output.
+         */
+        private final DataOutputStream out;
+        /**
+         * Number of bytes written to the data file so far.
+         */
+        private long written;
+        /**
+         * IDs, types and offsets of the entries written so far.
+         */
+        private final List<String> entryIDs = new ArrayList<>();
+        private final List<Integer> entryTypes = new ArrayList<>();
+        private final List<Long> entryOffsets = new ArrayList<>();
+
+        Writer(File dir) {
+            this.dir = dir;
+            try {
+                tmp = File.createTempFile("tmp-pack-", ".pack", dir);
+                digest = MessageDigest.getInstance("SHA-1");
+                OutputStream file = new DigestOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), digest);
+                out = new DataOutputStream(new FilterOutputStream(file) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        file.write(b);
+                        written += 1;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        file.write(b, off, len);
+                        written += len;
+                    }
+                });
+                out.write(PACK_MAGIC);
+                out.writeInt(VERSION);
+            } catch (IOException | NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /**
+         * Adds DATA whole as the object of type TYPE named ID.
+         */
+        void add(String id, int type, byte[] data) {
+            writeEntry(id, type, type, null, data);
+        }
+
+        /**
+         * Adds the SIZE bytes read from IN whole as the object of type TYPE
+         * named ID, streaming them through a fixed-size buffer.
+         */
+        void add(String id, int type, InputStream in, long size) {
+            try {
+                startEntry(id, type, type, null, size);
+                Deflater deflater = new Deflater();
+                DeflaterOutputStream z = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                long n = in.transferTo(z);
+                z.finish();
+                deflater.end();
+                if (n != size) {
+                    throw error("Object %s changed size while it was packed.", id);
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /**
+         * Adds the object of type TYPE named ID as DELTA against the object BASEID.
+         */
+        void addDelta(String id, int type, String baseID, byte[] delta) {
+            writeEntry(id, type, DELTA, baseID, delta);
+        }
+
+        private void writeEntry(String id, int type, int entryType, String baseID,
+                                byte[] payload) {
+            try {
+                startEntry(id, type, entryType, baseID, payload.length);
+                Deflater deflater = new Deflater();
+                DeflaterOutputStream z = new DeflaterOutputStream(out, deflater);
+                z.write(payload);
+                z.finish();
+                deflater.end();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /**
+         * Records a new entry and writes its header.
+         */
+        private void startEntry(String id, int type, int entryType, String baseID,
+                                long size) throws IOException {
+            entryIDs.add(id);
+            entryTypes.add(type);
+            entryOffsets.add(written);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.write(entryType);
+            Delta.writeVarint(header, size);
+            if (baseID != null) {
+                header.write(fromHex(baseID));
+            }
+            header.writeTo(out);
+        }
+
+        /**
+         * Finishes the pack, writes its index and moves both into place.
+         * Returns the index file.
+         */
+        File finish() {
+            try {
+                byte[] checksum = digest.digest();
+                String name = "pack-" + toHex(checksum, 0);
+                out.write(checksum);
+                out.close();
+
+                int count = entryIDs.size();
+                Integer[] order = new Integer[count];
+                for (int i = 0; i < count; i += 1) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, (a, b) -> entryIDs.get(a).compareTo(entryIDs.get(b)));
+                int[] fanout = new int[256];
+                for (String id : entryIDs) {
+                    fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+                }
+                for (int i = 1; i < 256; i += 1) {
+                    fanout[i] += fanout[i - 1];
+                }
+                File idxTmp = File.createTempFile("tmp-pack-", ".idx", dir);
+                DataOutputStream idx = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(idxTmp)));
+                idx.write(IDX_MAGIC);
+                idx.writeInt(VERSION);
+                for (int f : fanout) {
+                    idx.writeInt(f);
+                }
+                for (int i : order) {
+                    idx.write(fromHex(entryIDs.get(i)));
+                }
+                for (int i : order) {
+                    idx.writeByte(entryTypes.get(i));
+                }
+                for (int i : order) {
+                    idx.writeLong(entryOffsets.get(i));
+                }
+                idx.write(checksum);
+                idx.close();
+
+                File packFile = join(dir, name + ".pack");
+                File idxFile = join(dir, name + ".idx");
+                // Both are synced before the loose objects they replace can be
+                // deleted, and the index is renamed last: a pack is not
+                // visible until its index is.
+                sync(List.of(tmp, idxTmp));
+                if (!tmp.renameTo(packFile) || !idxTmp.renameTo(idxFile)) {
+                    throw error("Could not move pack %s into place.", name);
+                }
+                syncDirectories(List.of(idxFile));
+                return idxFile;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The references of one Gitlet repository: a small file per branch under
+ * refs/heads holding the ID of the branch's head commit, a file per remote
+ * under remotes holding the remote's directory, and a HEAD file naming the
+ * current branch as "ref: refs/heads/NAME". Names are URL-encoded into file
+ * names, so that branches such as "R1/master" stay single files.
+ *
+ * Updates are held in memory, and reads see them, until commit writes each
+ * changed file to a temporary file, syncs them all and renames them into
+ * place. Only the files that changed are rewritten. Each file is replaced
+ * atomically, but not all of them together: the files are renamed one at a
+ * time in the order they were changed, so a crash part way through keeps
+ * the earlier updates only.
+ *
+ * @author Daniel Zhao
+ */
+class Refs {
+
+    /**
+     * Prefix of a symbolic reference in HEAD.
+     */
+    private static final String SYMBOLIC = "ref: refs/heads/";
+
+    /**
+     * The .gitlet directory these references belong to.
+     */
+    private final File root;
+    /**
+     * The HEAD file.
+     */
+    private final File headFile;
+    /**
+     * Directory of branch files.
+     */
+    private final File heads;
+    /**
+     * Directory of remote files.
+     */
+    private final File remoteDir;
+    /**
+     * Updates not yet committed: new contents by file, or null for a
+     * file to delete.
+     */
+    private final Map<File, String> pending = new LinkedHashMap<>();
+
+    /**
+     * The references of the repository whose .gitlet directory is ROOT.
+     */
+    Refs(File root) {
+        this.root = root;
+        headFile = join(root, "HEAD");
+        heads = join(root, "refs", "heads");
+        remoteDir = join(root, "remotes");
+    }
+
+    /**
+     * Returns whether the repository has references, converting the single
+     * save file of earlier versions if need be.
+     */
+    boolean exists() {
+        if (read(headFile) == null && join(root, "save").exists()) {
+            convertSaveFile();
+        }
+        return read(headFile) != null;
+    }
+
+    /**
+     * Returns the name of the current branch.
+     */
+    String head() {
+        exists();
+        String ref = read(headFile).trim();
+        if (!ref.startsWith(SYMBOLIC)) {
+            throw error("Unrecognized HEAD: %s", ref);
+        }
+        return decode(ref.substring(SYMBOLIC.length()));
+    }
+
+    /**
+     * Makes BRANCH the current branch.
+     */
+    void setHead(String branch) {
+        pending.put(headFile, SYMBOLIC + encode(branch) + "\n");
+    }
+
+    /**
+     * Returns the head commit ID of BRANCH, or null if there is no such branch.
+     */
+    String get(String branch) {
+        exists();
+        String id = read(join(heads, encode(branch)));
+        return id == null ? null : id.trim();
+    }
+
+    /**
+     * Points BRANCH at commit ID, creating the branch if need be.
+     */
+    void set(String branch, String id) {
+        pending.put(join(heads, encode(branch)), id + "\n");
+    }
+
+    /**
+     * Deletes BRANCH.
+     */
+    void delete(String branch) {
+        pending.put(join(heads, encode(branch)), null);
+    }
+
+    /**
+     * Returns every branch mapped to its head commit ID.
+     */
+    TreeMap<String, String> branches() {
+        exists();
+        TreeMap<String, String> result = list(heads);
+        result.replaceAll((branch, id) -> id.trim());
+        return result;
+    }
+
+    /**
+     * Returns every remote mapped to its directory.
+     */
+    TreeMap<String, String> remotes() {
+        exists();
+        return list(remoteDir);
+    }
+
+    /**
+     * Returns the directory of remote NAME, or null if there is no such remote.
+     */
+    String remote(String name) {
+        exists();
+        return read(join(remoteDir, encode(name)));
+    }
+
+    /**
+     * Records remote NAME as living in directory DIR.
+     */
+    void setRemote(String name, String dir) {
+        pending.put(join(remoteDir, encode(name)), dir);
+    }
+
+    /**
+     * Deletes remote NAME.
+     */
+    void deleteRemote(String name) {
+        pending.put(join(remoteDir, encode(name)), null);
+    }
+
+    /**
+     * Writes every pending update. The new contents are all synced before
+     * the first rename, so each file holds either its old contents or its
+     * new ones, and the renames are synced together afterwards. Files are
+     * renamed in the order they were changed; Repository.finish calls this
+     * last, so that the references are what commits a command.
+     */
+    void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<File, File> temps = new LinkedHashMap<>();
+        for (Map.Entry<File, String> update : pending.entrySet()) {
+            if (update.getValue() != null) {
+                File file = update.getKey();
+                file.getParentFile().mkdirs();
+                File tmp = join(file.getParentFile(), ".tmp-" + file.getName());
+                writeContents(tmp, update.getValue());
+                temps.put(file, tmp);
+            }
+        }
+        sync(temps.values());
+        try {
+            for (File file : pending.keySet()) {
+                File tmp = temps.get(file);
+                if (tmp == null) {
+                    file.delete();
+                } else {
+                    Files.move(tmp.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        syncDirectories(pending.keySet());
+        pending.clear();
+    }
+
+    /**
+     * Discards the updates made since the last commit.
+     */
+    void refresh() {
+        pending.clear();
+    }
+
+    /**
+     * Returns the contents of reference FILE, or null if it does not exist.
+     */
+    private String read(File file) {
+        if (pending.containsKey(file)) {
+            return pending.get(file);
+        }
+        return file.isFile() ? readContentsAsString(file) : null;
+    }
+
+    /**
+     * Returns the contents of every reference file in DIR by decoded name.
+     */
+    private TreeMap<String, String> list(File dir) {
+        TreeMap<String, String> result = new TreeMap<>();
+        List<String> names = plainFilenamesIn(dir);
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(".tmp-")) {
+                    result.put(decode(name), readContentsAsString(join(dir, name)));
+                }
+            }
+        }
+        for (Map.Entry<File, String> update : pending.entrySet()) {
+            File file = update.getKey();
+            if (file.getParentFile().equals(dir)) {
+                if (update.getValue() == null) {
+                    result.remove(decode(file.getName()));
+                } else {
+                    result.put(decode(file.getName()), update.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String name) {
+        return URLDecoder.decode(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes references for the state kept by earlier versions in a single
+     * serialized save file (the head commit, the branch heads, the current
+     * branch and the remotes), then removes that file.
+     */
+    @SuppressWarnings("unchecked")
+    private void convertSaveFile() {
+        File save = join(root, "save");
+        ArrayList<Object> saved = readObject(save, ArrayList.class);
+        TreeMap<String, Commit> branches = (TreeMap<String, Commit>) saved.get(1);
+        String current = (String) saved.get(2);
+        TreeMap<String, String> remotes = (TreeMap<String, String>) saved.get(3);
+        for (String branch : branches.keySet()) {
+            set(branch, branches.get(branch).getID());
+        }
+        for (String remote : remotes.keySet()) {
+            setRemote(remote, remotes.get(remote));
+        }
+        // HEAD is renamed into place last: it marks the conversion as done.
+        setHead(current);
+        commit();
+        save.delete();
+    }
+}
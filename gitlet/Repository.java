@@ -1,7 +1,18 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.*;
+import java.util.function.Function;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static gitlet.Utils.*;
 
@@ -27,14 +38,62 @@ public class Repository {
     public static final File GITLET_DIR = join(CWD, ".gitlet");
     static final File COMMIT_PATH = join(GITLET_DIR, "commits");
     static final File BLOBS_PATH = join(GITLET_DIR, "blobs");
+    /**
+     * Staging directories of earlier versions, converted into the index.
+     */
     static final File ADDSTAGE_PATH = join(GITLET_DIR, "addStage");
     static final File RMSTAGE_PATH = join(GITLET_DIR, "rmStage");
-    static final File SAVE_DATA = join(GITLET_DIR, "save");
-    private static ArrayList<Object> saved = new ArrayList<>();
+    /**
+     * Commits and blobs of this repository, whether loose or packed.
+     */
+    static final ObjectStore OBJECTS = new ObjectStore(GITLET_DIR);
+    /**
+     * Branches, remotes and HEAD of this repository.
+     */
+    static final Refs REFS = new Refs(GITLET_DIR);
+    /**
+     * The staging area, and cached stat data and blob IDs of working files.
+     */
+    static final Index INDEX = new Index(GITLET_DIR);
+    /**
+     * Number of decoded commits kept for each object store.
+     */
+    private static final int COMMIT_CACHE_SIZE = 1024;
+    /**
+     * Recently read commits of this repository.
+     */
+    static final CommitCache COMMITS = new CommitCache(OBJECTS, COMMIT_CACHE_SIZE);
+    /**
+     * Parents, generations and times of the commits of this repository.
+     */
+    static final CommitGraph GRAPH = new CommitGraph(GITLET_DIR, OBJECTS);
+    /**
+     * Index of the commit messages of this repository.
+     */
+    static final MessageIndex MESSAGES = new MessageIndex(GITLET_DIR, OBJECTS, COMMITS);
+    /**
+     * Object stores, commit caches, commit graphs, message indexes and
+     * references of the remotes used by this command, by name.
+     */
+    private static final Map<String, ObjectStore> REMOTE_OBJECTS = new HashMap<>();
+    private static final Map<String, CommitCache> REMOTE_COMMITS = new HashMap<>();
+    private static final Map<String, CommitGraph> REMOTE_GRAPHS = new HashMap<>();
+    private static final Map<String, MessageIndex> REMOTE_MESSAGES = new HashMap<>();
+    private static final Map<String, Refs> REMOTE_REFS = new HashMap<>();
+    /**
+     * Number of commits global-log decodes at a time.
+     */
+    private static final int LOG_BATCH = 256;
+    /**
+     * Size of the buffer logs are written through.
+     */
+    private static final int BUFFER_SIZE = 64 << 10;
+    /**
+     * The head commit and the current branch, each read on first use.
+     * Branches and remotes are read from REFS as they are needed.
+     */
     private static Commit head;
-    private static TreeMap<String, Commit> branches;
     private static String currentBranch;
-    private static TreeMap<String, String> remotes;
 
     /**
      * Initializes gitlet repository
@@ -49,90 +108,197 @@ public class Repository {
         GITLET_DIR.mkdir();
         COMMIT_PATH.mkdir();
         BLOBS_PATH.mkdir();
-        ADDSTAGE_PATH.mkdir();
-        RMSTAGE_PATH.mkdir();
-        branches = new TreeMap<>();
         currentBranch = "master";
-        remotes = new TreeMap<>();
         Commit initCommit = new Commit();
         saveCommit(initCommit);
         head = initCommit;
-        save();
+        REFS.setHead(getCurrentBranch());
     }
 
     /**
      * Saves commit in the commits folder with a specific ID
      */
     public static void saveCommit(Commit c) {
-        String id = c.getID();
-        File commit = join(COMMIT_PATH, id);
-        writeObject(commit, c);
+        OBJECTS.writeCommit(c.getID(), c.encode());
+        COMMITS.put(c);
+        GRAPH.add(c);
+        MESSAGES.add(c);
         // Updates pointer of branch to be new commit
-        branches.put(currentBranch, c);
-        save();
+        REFS.set(getCurrentBranch(), c.getID());
     }
 
     /**
      * Returns the commit with a specific ID
      */
     public static Commit getCommit(String commitID) {
-        if (commitID == null) {
+        return COMMITS.get(commitID);
+    }
+
+    /**
+     * Prints how many commit reads of this command were answered by the
+     * commit caches and how many went to disk, for diagnostics.
+     */
+    public static void printCacheStats() {
+        System.err.printf("commit cache: %d hits, %d misses%n", COMMITS.hits(), COMMITS.misses());
+        for (Map.Entry<String, CommitCache> remote : REMOTE_COMMITS.entrySet()) {
+            System.err.printf("commit cache of %s: %d hits, %d misses%n", remote.getKey(),
+                    remote.getValue().hits(), remote.getValue().misses());
+        }
+    }
+
+    /**
+     * Returns the commit whose ID starts with ABRID, or prints why there is
+     * none and returns null.
+     */
+    public static String abbreviated(String abrID) {
+        List<String> commitNames = OBJECTS.commitIDsWithPrefix(abrID);
+        if (commitNames.isEmpty()) {
+            System.out.println("No commit with that id exists.");
             return null;
         }
-        File returnCommit = join(COMMIT_PATH, commitID);
-        if (!returnCommit.exists()) {
+        if (commitNames.size() > 1) {
+            System.out.println("That commit id is ambiguous.");
             return null;
         }
-        return readObject(returnCommit, Commit.class);
+        return commitNames.get(0);
     }
 
-    public static String abbreviated(String abrID) {
-        List<String> commitNames = plainFilenamesIn(COMMIT_PATH);
-        for (String commitID : commitNames) {
-            if (commitID.startsWith(abrID)) {
-                return commitID;
-            }
+    /**
+     * Ends the command by writing what it changed, the references last, so
+     * that writing them commits the command. Until finish nothing is written,
+     * so a command that fails part way leaves the repository as it was, and
+     * a command pays for one group of syncs however many objects it writes.
+     *
+     * The files are not replaced together, each being renamed into place on
+     * its own, so the order matters if the process dies part way through.
+     * Objects come first, in this repository and in remotes: until a
+     * reference reaches them they are only unused files. The commit graphs
+     * and message indexes come next. They only describe commits already
+     * stored, and answer for any commit they lack by reading it, so they
+     * may run ahead of the references but never refer to missing objects.
+     * The index comes before the references. If they are lost after it, the
+     * staging area of a commit is cleared without the commit being made, but
+     * what was staged is still in the working directory, shown as modified,
+     * and can be added again. Each reference file is replaced atomically,
+     * in the order the command changed them, and remotes' before this
+     * repository's.
+     *
+     * Objects are written to temporary files until finish renames them. A
+     * command that fails deletes those it wrote, through discard; those of a
+     * process killed outright are deleted by repack once a day old.
+     */
+    public static void finish() {
+        OBJECTS.commit();
+        for (ObjectStore remote : REMOTE_OBJECTS.values()) {
+            remote.commit();
         }
-        return null;
+        GRAPH.commit();
+        for (CommitGraph remote : REMOTE_GRAPHS.values()) {
+            remote.commit();
+        }
+        MESSAGES.commit();
+        for (MessageIndex remote : REMOTE_MESSAGES.values()) {
+            remote.commit();
+        }
+        INDEX.commit();
+        for (Refs remote : REMOTE_REFS.values()) {
+            remote.commit();
+        }
+        REFS.commit();
     }
 
     /**
-     * Persistence after closing
+     * Ends a command that failed before finish: deletes the objects it
+     * wrote, in this repository and in remotes.
      */
-    public static void save() {
-        saved.add(0, head);
-        saved.add(1, branches);
-        saved.add(2, currentBranch);
-        saved.add(3, remotes);
-        writeObject(SAVE_DATA, saved);
+    public static void discard() {
+        OBJECTS.discard();
+        for (ObjectStore remote : REMOTE_OBJECTS.values()) {
+            remote.discard();
+        }
     }
 
     /**
-     * Loads when opening up terminal
+     * Prepares a long-running process for its next command, as if it had
+     * just started: whatever the last command left uncommitted is discarded,
+     * and state other processes may have changed is read again on next use.
+     * Decoded commits stay cached, as commits never change.
+     */
+    public static void refresh() {
+        OBJECTS.refresh();
+        REFS.refresh();
+        INDEX.refresh();
+        GRAPH.refresh();
+        MESSAGES.refresh();
+        for (ObjectStore remote : REMOTE_OBJECTS.values()) {
+            remote.refresh();
+        }
+        REMOTE_OBJECTS.clear();
+        REMOTE_COMMITS.clear();
+        REMOTE_GRAPHS.clear();
+        REMOTE_MESSAGES.clear();
+        REMOTE_REFS.clear();
+    }
+
+    /**
+     * Loads when opening up terminal. Only checks that there is a
+     * repository; its parts are read as commands need them.
      */
     public static boolean load() {
-        if (!SAVE_DATA.exists()) {
+        head = null;
+        currentBranch = null;
+        if (!REFS.exists()) {
             return false;
         }
-        saved = readObject(SAVE_DATA, ArrayList.class);
-        head = (Commit) saved.get(0);
-        branches = (TreeMap<String, Commit>) saved.get(1);
-        currentBranch = (String) saved.get(2);
-        remotes = (TreeMap<String, String>) saved.get(3);
+        if (ADDSTAGE_PATH.isDirectory() || RMSTAGE_PATH.isDirectory()) {
+            convertStagingDirectories();
+        }
         return true;
     }
 
+    /**
+     * Moves the files staged by earlier versions, which copied them into the
+     * addStage and rmStage directories, into the index.
+     */
+    private static void convertStagingDirectories() {
+        List<String> added = plainFilenamesIn(ADDSTAGE_PATH);
+        List<String> removed = plainFilenamesIn(RMSTAGE_PATH);
+        for (String name : added == null ? List.<String>of() : added) {
+            INDEX.stage(name, OBJECTS.writeBlob(join(ADDSTAGE_PATH, name)));
+        }
+        for (String name : removed == null ? List.<String>of() : removed) {
+            INDEX.stage(name, null);
+        }
+        OBJECTS.commit();
+        INDEX.commit();
+        for (File dir : new File[] {ADDSTAGE_PATH, RMSTAGE_PATH}) {
+            for (String name : plainFilenamesIn(dir) == null ? List.<String>of()
+                    : plainFilenamesIn(dir)) {
+                join(dir, name).delete();
+            }
+            dir.delete();
+        }
+    }
+
     /**
      * Returns head commit from saved data
      */
     public static Commit getHead() {
+        if (head == null) {
+            long start = System.nanoTime();
+            head = getCommit(REFS.get(getCurrentBranch()));
+            trace("head commit", start);
+        }
         return head;
     }
 
     /**
      * Returns branches map from saved data
      */
-    public static TreeMap<String, Commit> getBranches() {
+    public static TreeMap<String, String> getBranches() {
+        long start = System.nanoTime();
+        TreeMap<String, String> branches = REFS.branches();
+        trace("branches", start);
         return branches;
     }
 
@@ -140,6 +306,9 @@ public class Repository {
      * Returns current branch from saved data
      */
     public static String getCurrentBranch() {
+        if (currentBranch == null) {
+            currentBranch = REFS.head();
+        }
         return currentBranch;
     }
 
@@ -147,101 +316,201 @@ public class Repository {
      * Creates file in CWD, using data from blobs folder. Only works if it exists in blob.
      */
     private static void createFileFromBlob(String name, String code) {
-        File blob = join(BLOBS_PATH, code);
-        if (!blob.exists()) {
-            throw new RuntimeException("Wrong use of create file within code.");
-        }
         File newFile = join(CWD, name);
-        writeContents(newFile, readContents(blob));
+        OBJECTS.checkoutBlob(code, newFile, linkFiles());
+        INDEX.written(newFile, code);
+    }
+
+    /**
+     * Returns whether large blobs stored as is are checked out as hard links
+     * to the stored copy, as asked by setting GITLET_CHECKOUT_MODE to "link".
+     * Such files are read-only; they must be replaced, not edited in place,
+     * as gitlet-design.md tells users.
+     */
+    private static boolean linkFiles() {
+        return "link".equals(getenv("GITLET_CHECKOUT_MODE"));
+    }
+
+    /**
+     * Returns the most threads to write working files with at once.
+     * GITLET_CHECKOUT_JOBS in the environment sets it, for disks that do
+     * worse with many writes in flight; 1 writes them one at a time.
+     */
+    private static int writeJobs() {
+        String jobs = getenv("GITLET_CHECKOUT_JOBS");
+        if (jobs != null) {
+            try {
+                return Math.max(1, Integer.parseInt(jobs.trim()));
+            } catch (NumberFormatException excp) {
+                throw new IllegalArgumentException("Bad GITLET_CHECKOUT_JOBS: " + jobs);
+            }
+        }
+        return Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates each file of FILES in CWD from the blob it maps to. Most of
+     * the time of writing many small files goes to waiting on the file
+     * system, so they are read and written by up to writeJobs() threads at
+     * once. If any fail, the failure of the first file by name is thrown,
+     * once every other file is done.
+     */
+    private static void createFilesFromBlobs(SortedMap<String, String> files) {
+        long start = System.nanoTime();
+        int jobs = Math.min(writeJobs(), files.size());
+        if (jobs <= 1) {
+            files.forEach(Repository::createFileFromBlob);
+            trace("write files", start);
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(jobs, task -> {
+            Thread t = new Thread(task, "gitlet-write");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> writes = new ArrayList<>(files.size());
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                writes.add(pool.submit(
+                        () -> createFileFromBlob(file.getKey(), file.getValue())));
+            }
+            RuntimeException failure = null;
+            for (Future<?> write : writes) {
+                try {
+                    write.get();
+                } catch (ExecutionException excp) {
+                    if (failure == null) {
+                        failure = excp.getCause() instanceof RuntimeException
+                                ? (RuntimeException) excp.getCause()
+                                : new IllegalArgumentException(excp.getCause());
+                    }
+                } catch (InterruptedException excp) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalArgumentException("Interrupted writing files.");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        trace("write files", start);
     }
 
     /**
      * Deletes everything in both staging areas.
      */
     public static void clearStage() {
-        for (String fName : plainFilenamesIn(ADDSTAGE_PATH)) {
-            join(ADDSTAGE_PATH, fName).delete();
+        INDEX.clearStage();
+    }
+
+    /**
+     * Makes CWD hold exactly the files of commit TARGET, as if it were
+     * cleared and every file of TARGET written, but touching only the files
+     * that differ. Files whose blobs differ between the head commit and
+     * TARGET are written; every other file of TARGET is written only if its
+     * working copy is missing or no longer matches, which the index mostly
+     * tells from stat data alone.
+     */
+    private static void checkoutCommit(Commit target) {
+        TreeMap<String, String> blobs = target.getBlobs();
+        Set<String> changed = changedFiles(getHead(), target);
+        for (String fName : plainFilenamesIn(CWD)) {
+            if (!blobs.containsKey(fName)) {
+                restrictedDelete(join(CWD, fName));
+                INDEX.remove(fName);
+            }
         }
-        for (String fName : plainFilenamesIn(RMSTAGE_PATH)) {
-            join(RMSTAGE_PATH, fName).delete();
+        TreeMap<String, String> writes = new TreeMap<>();
+        for (Map.Entry<String, String> entry : blobs.entrySet()) {
+            File f = join(CWD, entry.getKey());
+            if (changed.contains(entry.getKey()) || !f.isFile()
+                    || !entry.getValue().equals(INDEX.hash(f))) {
+                writes.put(entry.getKey(), entry.getValue());
+            }
         }
+        createFilesFromBlobs(writes);
     }
 
     /**
-     * Deletes everything in CWD.
+     * Returns the files whose blobs differ between commits A and B. Trees
+     * are compared where both commits have them, skipping equal subtrees.
      */
-    public static void clearCWD() {
-        for (String fName : plainFilenamesIn(CWD)) {
-            restrictedDelete(join(CWD, fName));
+    private static Set<String> changedFiles(Commit a, Commit b) {
+        String treeA = a.writtenTreeID();
+        String treeB = b.writtenTreeID();
+        if (treeA != null && treeB != null) {
+            return Tree.diff(OBJECTS, treeA, treeB).keySet();
+        }
+        Set<String> result = new HashSet<>();
+        for (Map.Entry<String, String> file : a.getBlobs().entrySet()) {
+            if (!file.getValue().equals(b.getBlobs().get(file.getKey()))) {
+                result.add(file.getKey());
+            }
+        }
+        for (String name : b.getBlobs().keySet()) {
+            if (!a.fileinBlob(name)) {
+                result.add(name);
+            }
         }
+        return result;
     }
 
     /**
      * Adds a file to the staging area, and deletes it from the RM staging area.
      */
     public static void addToStage(File f) {
-        head = getHead();
-        String fileID = sha1(readContents(f));
+        // Stores the blob now, so that committing it is a matter of metadata
+        String fileID = INDEX.store(f, OBJECTS);
         String fileName = f.getName();
         // Checks if file is already inside commit
         boolean insideCommit = false;
-        String val = head.getBlobs().get(fileName);
+        String val = getHead().getBlobs().get(fileName);
         if (val != null && val.equals(fileID)) {
             insideCommit = true;
         }
+        // Staging replaces any removal staged for the same file
         if (!insideCommit) {
-            File stagedFile = join(ADDSTAGE_PATH, fileName);
-            writeContents(stagedFile, readContents(f));
+            INDEX.stage(fileName, fileID);
         } else {
-            join(ADDSTAGE_PATH, fileName).delete();
+            INDEX.unstage(fileName);
         }
-        // Deletes if inside delete stage
-        join(RMSTAGE_PATH, fileName).delete();
-        save();
     }
 
     /**
      * Commits all files in the staging area into a new commit, and clears the staging area
      */
     public static void commitAll(String message) {
-        String parentID = head.getID();
-        // Gives names of all files in staging area
-        List<String> addedFileList = plainFilenamesIn(ADDSTAGE_PATH);
-        List<String> rmedFileList = plainFilenamesIn(RMSTAGE_PATH);
-        if (addedFileList.isEmpty() && rmedFileList.isEmpty()) {
+        String parentID = getHead().getID();
+        // Gives all files in staging area
+        Map<String, String> staged = INDEX.staged();
+        if (staged.isEmpty()) {
             System.out.println("No changes added to the commit.");
             return;
         }
         // Creates new commit
-        Commit thisCommit = new Commit(message, parentID, getCommit(parentID).getBlobs(),
-                currentBranch, head.getLength() + 1);
-        // Adds all files staged for addition
-        for (String addFileName : addedFileList) {
-            byte[] contents = readContents(join(ADDSTAGE_PATH, addFileName));
-            String currentHash = sha1(contents);
-            // Adds file to the commit from staging area
-            thisCommit.addToBlob(addFileName, currentHash);
-            // Creates new file in blobs from staging area
-            File committedFile = join(BLOBS_PATH, currentHash);
-            writeContents(committedFile, contents);
-            // Deletes file in staging area
-            join(ADDSTAGE_PATH, addFileName).delete();
-        }
-        // Removes all files staged for removal
-        for (String rmFileName : rmedFileList) {
-            thisCommit.removeFromBlob(rmFileName);
-            join(RMSTAGE_PATH, rmFileName).delete();
+        Commit thisCommit = new Commit(message, parentID, getHead().getTreeID(),
+                getCurrentBranch(), getHead().getLength() + 1);
+        // Adds all files staged for addition, whose blobs were stored by add,
+        // and removes all files staged for removal
+        for (Map.Entry<String, String> file : staged.entrySet()) {
+            if (file.getValue() != null) {
+                thisCommit.addToBlob(file.getKey(), file.getValue());
+            } else {
+                thisCommit.removeFromBlob(file.getKey());
+            }
         }
+        INDEX.clearStage();
         head = thisCommit;
         saveCommit(thisCommit);
-        save();
     }
 
     /**
      * Checkout command for a file. Checks if file is in the HEAD commit, puts it in the CWD.
      */
     public static void checkoutFile(String fileName) {
-        checkoutFile(fileName, head.getID());
+        checkoutFile(fileName, getHead().getID());
     }
 
     /**
@@ -258,9 +527,7 @@ public class Repository {
             System.out.println("File does not exist in that commit.");
             return;
         }
-        File checked = join(BLOBS_PATH, fileHashCode);
-        writeContents(join(CWD, fileName), readContents(checked));
-        save();
+        createFileFromBlob(fileName, fileHashCode);
     }
 
     /**
@@ -269,11 +536,11 @@ public class Repository {
      * @param name Name of the branch to move to.
      */
     public static void checkoutBranch(String name) {
-        if (name.equals(currentBranch)) {
+        if (name.equals(getCurrentBranch())) {
             System.out.println("No need to checkout the current branch.");
             return;
         }
-        if (!branches.containsKey(name)) {
+        if (REFS.get(name) == null) {
             System.out.println("No such branch exists.");
             return;
         }
@@ -282,18 +549,13 @@ public class Repository {
                     + "or add and commit it first.");
             return;
         }
-        // Deletes everything in CWD
-        clearCWD();
-        // Sets current head to branch head
-        head = branches.get(name);
-        // Creates new files in CWD
-        TreeMap<String, String> blobs = head.getBlobs();
-        for (Map.Entry<String, String> entry : blobs.entrySet()) {
-            createFileFromBlob(entry.getKey(), entry.getValue());
-        }
+        // Updates CWD to the branch head, then makes it the head
+        Commit branchHead = getCommit(REFS.get(name));
+        checkoutCommit(branchHead);
+        head = branchHead;
         clearStage();
         currentBranch = name;
-        save();
+        REFS.setHead(name);
     }
 
 
@@ -301,24 +563,21 @@ public class Repository {
      * Puts file in remove staging area, and removes it from the adding staging area.
      */
     public static void removeFile(String fName) {
-        File addedFile = join(ADDSTAGE_PATH, fName);
         // Checks to see if file is in the current commit
-        if (!head.fileinBlob(fName) && !addedFile.exists()) {
+        if (!getHead().fileinBlob(fName) && INDEX.staged().get(fName) == null) {
             System.out.println("No reason to remove the file.");
             return;
         }
         // Deletes file from adding stage
-        addedFile.delete();
-        if (head.fileinBlob(fName)) {
+        INDEX.unstage(fName);
+        if (getHead().fileinBlob(fName)) {
             // Stages file for removal
-            File stagedFile = join(RMSTAGE_PATH, fName);
-            File blobFile = head.getFile(fName);
-            writeContents(stagedFile, readContents(blobFile));
+            INDEX.stage(fName, null);
             // Deletes from working directory
             File f = join(CWD, fName);
             restrictedDelete(f);
+            INDEX.remove(fName);
         }
-        save();
     }
 
     /**
@@ -340,13 +599,12 @@ public class Repository {
      * Prints log of all commits before current HEAD commit.
      */
     public static void printLog() {
-        Commit current = getHead();
-        String parentID = current.getParentID();
-        System.out.println(stringCommit(current));
+        System.out.println(stringCommit(getHead()));
+        // Parents come from the commit graph; commits are read only to be printed
+        String parentID = GRAPH.get(getHead().getID()).parent;
         while (parentID != null) {
-            current = getCommit(parentID);
-            parentID = current.getParentID();
-            System.out.println(stringCommit(current));
+            System.out.println(stringCommit(getCommit(parentID)));
+            parentID = GRAPH.get(parentID).parent;
         }
     }
 
@@ -354,9 +612,34 @@ public class Repository {
      * Prints global log of all commits in repo.
      */
     public static void printGlobalLog() {
-        List<String> allCommits = plainFilenamesIn(COMMIT_PATH);
-        for (String c : allCommits) {
-            System.out.println(stringCommit(getCommit(c)));
+        printGlobalLog(0, -1);
+    }
+
+    /**
+     * Prints global log of the commits in repo, skipping the first SKIP and
+     * printing at most LIMIT of them, or all the rest if LIMIT is negative.
+     * Commits are read and decoded in parallel a batch at a time, and
+     * printed in order through one buffered writer.
+     */
+    public static void printGlobalLog(int skip, int limit) {
+        List<String> allCommits = OBJECTS.commitIDs();
+        int end = limit < 0 ? allCommits.size()
+                : (int) Math.min(allCommits.size(), (long) skip + limit);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+        try {
+            for (int start = skip; start < end; start += LOG_BATCH) {
+                List<String> batch = allCommits.subList(start, Math.min(end, start + LOG_BATCH));
+                List<String> texts = batch.parallelStream()
+                        .map(c -> stringCommit(getCommit(c)))
+                        .collect(Collectors.toList());
+                for (String text : texts) {
+                    out.write(text);
+                    out.write('\n');
+                }
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
     }
 
@@ -364,18 +647,30 @@ public class Repository {
      * Finds and prints all commit IDs with given commit message
      */
     public static void findMessage(String message) {
-        List<String> allCommits = plainFilenamesIn(COMMIT_PATH);
-        boolean foundOne = false;
-        for (String c : allCommits) {
-            Commit current = getCommit(c);
-            if (current.getMessage().equals(message)) {
-                System.out.println(current.getID());
-                foundOne = true;
-            }
+        printFound(MESSAGES.find(message));
+    }
+
+    /**
+     * Finds and prints all commit IDs whose message contains all the given
+     * words, ignoring case.
+     */
+    public static void findWords(String words) {
+        printFound(MESSAGES.findWords(words));
+    }
+
+    /**
+     * Finds and prints all commit IDs whose message contains the given text.
+     */
+    public static void findContaining(String text) {
+        printFound(MESSAGES.findContaining(text));
+    }
+
+    private static void printFound(List<String> found) {
+        for (String id : found) {
+            System.out.println(id);
         }
-        if (!foundOne) {
+        if (found.isEmpty()) {
             System.out.println("Found no commit with that message.");
-            return;
         }
     }
 
@@ -383,28 +678,26 @@ public class Repository {
      * Creates new branch with given name.
      */
     public static void createNewBranch(String name) {
-        if (branches.containsKey(name)) {
+        if (REFS.get(name) != null) {
             System.out.println("A branch with that name already exists.");
             return;
         }
-        branches.put(name, head);
-        save();
+        REFS.set(name, getHead().getID());
     }
 
     /**
      * Removes branch with given name.
      */
     public static void removeBranch(String name) {
-        if (currentBranch.equals(name)) {
+        if (getCurrentBranch().equals(name)) {
             System.out.println("Cannot remove the current branch.");
             return;
         }
-        if (!branches.containsKey(name)) {
+        if (REFS.get(name) == null) {
             System.out.println("A branch with that name does not exist.");
             return;
         }
-        branches.remove(name);
-        save();
+        REFS.delete(name);
     }
 
     /**
@@ -421,15 +714,10 @@ public class Repository {
             System.out.println("No commit with that id exists.");
             return;
         }
-        clearCWD();
-        TreeMap<String, String> blobs = c.getBlobs();
-        for (String f : blobs.keySet()) {
-            checkoutFile(f, commitID);
-        }
+        checkoutCommit(c);
         clearStage();
         head = c;
-        branches.put(currentBranch, c);
-        save();
+        REFS.set(getCurrentBranch(), c.getID());
     }
 
     /**
@@ -443,39 +731,33 @@ public class Repository {
         if (!cwdF.exists()) {
             throw new RuntimeException("This should be impossible, wrong use of check in code.");
         }
-        File stagedF = join(ADDSTAGE_PATH, fileName);
         // Returns false if it is in either the commit or is staged for addition.
-        return !stagedF.exists() && !head.fileinBlob(fileName);
+        return INDEX.staged().get(fileName) == null && !getHead().fileinBlob(fileName);
     }
 
     /**
      * Returns a list of all untracked files in CWD.
      */
     public static ArrayList<String> untrackedInCWD() {
-        ArrayList<String> untrackedFiles = new ArrayList<>();
-        List<String> filesInCWD = plainFilenamesIn(CWD);
-        for (String fName : filesInCWD) {
-            if (checkUntracked(fName)) {
-                untrackedFiles.add(fName);
-            }
-        }
-        return untrackedFiles;
+        // Loaded up front, as the checks below run on several threads
+        getHead().getBlobs();
+        INDEX.staged();
+        return plainFilenamesIn(CWD).parallelStream()
+                .filter(Repository::checkUntracked)
+                .collect(Collectors.toCollection(ArrayList::new));
     }
 
     /**
      * Returns whether untrackedFiles would also be deleted/modified in a merge
      */
     private static boolean untrackedMerge(Commit current, Commit branch) {
-        ArrayList<String> untrackedFiles = new ArrayList<>();
-        List<String> filesInCWD = plainFilenamesIn(CWD);
-        for (String fName : filesInCWD) {
-            if (checkUntracked(fName)) {
-                if (!(current.getFile(fName) == null && branch.getFile(fName) == null)) {
-                    untrackedFiles.add(fName);
-                }
-            }
-        }
-        return untrackedFiles.size() > 0;
+        getHead().getBlobs();
+        current.getBlobs();
+        branch.getBlobs();
+        INDEX.staged();
+        return plainFilenamesIn(CWD).parallelStream()
+                .anyMatch(fName -> checkUntracked(fName)
+                        && (current.fileinBlob(fName) || branch.fileinBlob(fName)));
     }
 
     /**
@@ -489,36 +771,44 @@ public class Repository {
      * Returns a map of all files modified, but not staged for commit or committed.
      */
     public static TreeMap<String, String> modifiedNotCommitted() {
-        TreeMap<String, String> finalList = new TreeMap<>();
-        TreeMap<String, String> blobs = head.getBlobs();
-        for (Map.Entry<String, String> entry : blobs.entrySet()) {
-            String fileName = entry.getKey();
-            String hashVal = entry.getValue();
-            File cwdF = join(CWD, fileName);
-            // Deleted from CWD, but not staged for removal.
-            if (!cwdF.exists()) {
-                if (!join(RMSTAGE_PATH, fileName).exists()) {
-                    finalList.put(fileName, "deleted");
-                }
-            } else if (!hashVal.equals(sha1(readContents(cwdF)))) {
-                if (!join(ADDSTAGE_PATH, fileName).exists()) {
-                    // Modified from CWD and head commit, but not staged.
-                    finalList.put(fileName, "modified");
-                }
+        TreeMap<String, String> blobs = getHead().getBlobs();
+        Map<String, String> staged = INDEX.staged();
+        TreeSet<String> names = new TreeSet<>(blobs.keySet());
+        for (Map.Entry<String, String> file : staged.entrySet()) {
+            if (file.getValue() != null) {
+                names.add(file.getKey());
             }
         }
-        for (String fileName : plainFilenamesIn(ADDSTAGE_PATH)) {
-            String hashStaged = sha1(readContents(join(ADDSTAGE_PATH, fileName)));
-            File cwdF = join(CWD, fileName);
-            // Staged for addition, but removed from CWD.
+        // Files are stat'ed and hashed concurrently; the TreeMap restores the order
+        return names.parallelStream()
+                .map(name -> new String[] {name, modification(name, blobs.get(name), staged)})
+                .filter(result -> result[1] != null)
+                .collect(Collectors.toMap(result -> result[0], result -> result[1],
+                        (a, b) -> a, TreeMap::new));
+    }
+
+    /**
+     * Returns "modified" or "deleted" if the working copy of file NAME differs
+     * from what would be committed, and null otherwise. COMMITTED is its blob
+     * in the head commit and STAGED the staging area.
+     */
+    private static String modification(String name, String committed,
+                                       Map<String, String> staged) {
+        File cwdF = join(CWD, name);
+        String hashStaged = staged.get(name);
+        if (hashStaged != null) {
+            // Staged for addition, but removed from CWD or with different contents.
             if (!cwdF.exists()) {
-                finalList.put(fileName, "deleted");
-            } else if (!hashStaged.equals(sha1(readContents(cwdF)))) {
-                // Staged for addition, but with different contents than in CWD.
-                finalList.put(fileName, "modified");
+                return "deleted";
             }
+            return hashStaged.equals(INDEX.hash(cwdF)) ? null : "modified";
         }
-        return finalList;
+        // Deleted from CWD, but not staged for removal.
+        if (!cwdF.exists()) {
+            return staged.containsKey(name) ? null : "deleted";
+        }
+        // Modified from CWD and head commit, but not staged.
+        return committed.equals(INDEX.hash(cwdF)) ? null : "modified";
     }
 
     /**
@@ -527,7 +817,7 @@ public class Repository {
     public static void status() {
         // Branches
         System.out.println("=== Branches ===");
-        List<String> keys = new ArrayList<>(branches.keySet());
+        List<String> keys = new ArrayList<>(getBranches().keySet());
 //        keys.remove("master");
 //        if(currentBranch.equals("master")) {
 //            System.out.print("*");
@@ -535,20 +825,25 @@ public class Repository {
 //        System.out.println("master");
         Collections.sort(keys);
         for (String branch : keys) {
-            if (branch.equals(currentBranch)) {
+            if (branch.equals(getCurrentBranch())) {
                 System.out.print("*");
             }
             System.out.println(branch);
         }
         // Staged Files
         System.out.println("\n=== Staged Files ===");
-        for (String f : plainFilenamesIn(ADDSTAGE_PATH)) {
-            System.out.println(f);
+        Map<String, String> staged = INDEX.staged();
+        for (Map.Entry<String, String> f : staged.entrySet()) {
+            if (f.getValue() != null) {
+                System.out.println(f.getKey());
+            }
         }
         // Removed Files
         System.out.println("\n=== Removed Files ===");
-        for (String f : plainFilenamesIn(RMSTAGE_PATH)) {
-            System.out.println(f);
+        for (Map.Entry<String, String> f : staged.entrySet()) {
+            if (f.getValue() == null) {
+                System.out.println(f.getKey());
+            }
         }
         // Modifications
         System.out.println("\n=== Modifications Not Staged For Commit ===");
@@ -567,109 +862,145 @@ public class Repository {
     }
 
     /**
-     * Finds and returns the split point of two commits.
+     * Prints the changes made in the working directory to the files of the
+     * head commit and the files staged for addition. Files whose working
+     * copy still has the blob ID they are compared with are skipped without
+     * being read.
      */
-    private static String findSplitHelper(Commit c1, Commit c2) {
-        ArrayList<String> sC1 = new ArrayList<>();
-        ArrayList<String> sC2 = new ArrayList<>();
-        HashSet<String> splitsC1 = new HashSet<>(findSplitHelper2(c1, sC1));
-        HashSet<String> splitsC2 = new HashSet<>(findSplitHelper2(c2, sC2));
-        // List of all common ancestors
-        ArrayList<String> common = new ArrayList<>();
-        for (String c : splitsC1) {
-            if (splitsC2.contains(c)) {
-                common.add(c);
-            }
-        }
-        String closest = null;
-        int maxVal = -1;
-        for (String hash : common) {
-            Commit c = getCommit(hash);
-            if (c.getLength() > maxVal) {
-                closest = hash;
-                maxVal = c.getLength();
+    public static void diff() {
+        TreeMap<String, String> committed = getHead().getBlobs();
+        TreeSet<String> names = new TreeSet<>(committed.keySet());
+        for (Map.Entry<String, String> f : INDEX.staged().entrySet()) {
+            if (f.getValue() != null) {
+                names.add(f.getKey());
             }
         }
-        return closest;
+        printDiff(names, committed::get, name -> {
+            File f = join(CWD, name);
+            return f.isFile() ? INDEX.hash(f) : null;
+        }, name -> {
+            File f = join(CWD, name);
+            return f.isFile() ? readContents(f) : null;
+        });
     }
 
     /**
-     * Helper 2 for findSplit. Finds and returns all ancestors of given commit in an ArrayList.
+     * Prints the changes staged to be committed.
      */
-    private static ArrayList<String> findSplitHelper2(Commit c, ArrayList<String> parents) {
-        String id = c.getID();
-        parents.add(id);
-        if (c.getParentID() == null) {
-            return parents;
+    public static void diffStaged() {
+        TreeMap<String, String> committed = getHead().getBlobs();
+        Map<String, String> staged = INDEX.staged();
+        printDiff(staged.keySet(), committed::get, staged::get,
+                name -> OBJECTS.readBlob(staged.get(name)));
+    }
+
+    /**
+     * Prints the changes between commits FROMID and TOID.
+     */
+    public static void diff(String fromID, String toID) {
+        Commit from = getCommit(fromID);
+        Commit to = getCommit(toID);
+        if (from == null || to == null) {
+            System.out.println("No commit with that id exists.");
+            return;
         }
-        parents.addAll(findSplitHelper2(getCommit(c.getParentID()), parents));
-        if (c instanceof MergeCommit) {
-            parents.addAll(findSplitHelper2(getCommit(((MergeCommit) c).getParent2ID()), parents));
+        TreeMap<String, String> old = from.getBlobs();
+        TreeMap<String, String> current = to.getBlobs();
+        printDiff(new TreeSet<>(changedFiles(from, to)), old::get, current::get,
+                name -> OBJECTS.readBlob(current.get(name)));
+    }
+
+    /**
+     * Prints, through one buffered writer, a unified diff of each file of
+     * NAMES whose blob ID before, given by OLD, differs from its blob ID
+     * after, given by CURRENT. A missing file has a null ID. The contents
+     * after are given by CONTENTS.
+     */
+    private static void printDiff(Collection<String> names, Function<String, String> old,
+                                  Function<String, String> current,
+                                  Function<String, byte[]> contents) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+        try {
+            for (String name : names) {
+                String oldID = old.apply(name);
+                String newID = current.apply(name);
+                if (Objects.equals(oldID, newID)) {
+                    continue;
+                }
+                Diff.Lines a = new Diff.Lines(OBJECTS.readBlob(oldID));
+                Diff.Lines b = new Diff.Lines(contents.apply(name));
+                String oldName = oldID == null ? "/dev/null" : "a/" + name;
+                String newName = newID == null ? "/dev/null" : "b/" + name;
+                out.write("diff --gitlet a/" + name + " b/" + name + "\n");
+                if (a.binary() || b.binary()) {
+                    out.write("Binary files " + oldName + " and " + newName + " differ\n");
+                } else {
+                    Diff.unified(oldName, a, newName, b, out);
+                }
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        return parents;
     }
 
     /**
      * Finds and returns the split point of two branches.
      */
     private static String findSplit(String b1, String b2) {
-        Commit b1Head = branches.get(b1);
-        Commit b2Head = branches.get(b2);
-        return findSplitHelper(b1Head, b2Head);
+        return GRAPH.mergeBase(REFS.get(b1), REFS.get(b2));
     }
 
     /**
-     * Replaces contents of conflicting file with fileName with designated strings
+     * Merges the changes made to a file since the split point, where it was
+     * blob SPLIT, in the current branch, where it is CURRENT, and in the
+     * given branch, where it is BRANCH, stores the result as a blob and
+     * returns its ID. A missing blob is null. Changes to different lines are
+     * merged; if either branch removed the file, the whole file conflicts.
+     * Whether the changes conflicted is put in CONFLICT.
      */
-    private static void conflictedFile(String fileName, Commit current, Commit branch) {
-        File editedFile = join(CWD, fileName);
-        File currentFile = current.getFile(fileName);
-        File branchFile = branch.getFile(fileName);
-        if (currentFile == null) {
-            writeContents(editedFile, "<<<<<<< HEAD\n" + "=======\n"
-                    + readContentsAsString(branchFile) + ">>>>>>>\n");
-        } else if (branchFile == null) {
-            writeContents(editedFile, "<<<<<<< HEAD\n"
-                    + readContentsAsString(currentFile) + "=======\n" + ">>>>>>>\n");
-        } else {
-            writeContents(editedFile, "<<<<<<< HEAD\n"
-                    + readContentsAsString(currentFile) + "=======\n"
-                    + readContentsAsString(branchFile) + ">>>>>>>\n");
+    private static String mergeFile(String split, String current, String branch,
+                                     boolean[] conflict) {
+        Diff.Lines ours = new Diff.Lines(OBJECTS.readBlob(current));
+        Diff.Lines theirs = new Diff.Lines(OBJECTS.readBlob(branch));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            if (current == null || branch == null) {
+                Diff.conflict(ours, theirs, out);
+                conflict[0] = true;
+            } else {
+                conflict[0] = Diff.merge(new Diff.Lines(OBJECTS.readBlob(split)),
+                        ours, theirs, out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        addToStage(editedFile);
-        save();
+        return OBJECTS.writeBlob(out.toByteArray());
     }
 
-    public static void mergeCommitAll(String message, String branch) {
-        String parentID = branches.get(currentBranch).getID();
-        String parent2ID = branches.get(branch).getID();
-        // Gives names of all files in staging area
-        List<String> addedFileList = plainFilenamesIn(ADDSTAGE_PATH);
-        List<String> rmedFileList = plainFilenamesIn(RMSTAGE_PATH);
+    /**
+     * Commits the merge of BRANCH into the current branch with MESSAGE, its
+     * files those of the head commit with CHANGES applied. A null blob ID in
+     * CHANGES removes the file.
+     */
+    public static void mergeCommitAll(String message, String branch,
+                                      Map<String, String> changes) {
+        String parentID = REFS.get(getCurrentBranch());
+        String parent2ID = REFS.get(branch);
         // Creates new commit
-        int length = Math.max(head.getLength(), branches.get(branch).getLength());
+        int length = Math.max(getHead().getLength(), GRAPH.get(parent2ID).generation - 1);
         Commit thisCommit = new MergeCommit(message, parentID, parent2ID,
-                getCommit(parentID).getBlobs(), currentBranch, length + 1);
-        // Adds all files staged for addition
-        for (String addFileName : addedFileList) {
-            byte[] contents = readContents(join(ADDSTAGE_PATH, addFileName));
-            String currentHash = sha1(contents);
-            // Adds file to the commit from staging area
-            thisCommit.addToBlob(addFileName, currentHash);
-            // Creates new file in blobs from staging area
-            File committedFile = join(BLOBS_PATH, currentHash);
-            writeContents(committedFile, contents);
-            // Deletes file in staging area
-            join(ADDSTAGE_PATH, addFileName).delete();
-        }
-        // Removes all files staged for removal
-        for (String rmFileName : rmedFileList) {
-            thisCommit.removeFromBlob(rmFileName);
-            join(RMSTAGE_PATH, rmFileName).delete();
+                getCommit(parentID).getTreeID(), getCurrentBranch(), length + 1);
+        for (Map.Entry<String, String> file : changes.entrySet()) {
+            if (file.getValue() != null) {
+                thisCommit.addToBlob(file.getKey(), file.getValue());
+            } else {
+                thisCommit.removeFromBlob(file.getKey());
+            }
         }
+        INDEX.clearStage();
         head = thisCommit;
         saveCommit(thisCommit);
-        save();
     }
 
     /**
@@ -677,16 +1008,16 @@ public class Repository {
      */
 
     private static boolean anyInStage() {
-        return !plainFilenamesIn(ADDSTAGE_PATH).isEmpty()
-                || !plainFilenamesIn(RMSTAGE_PATH).isEmpty();
+        return !INDEX.staged().isEmpty();
     }
 
     /**
      * Merges given branch and current branch together.
      */
     public static void merge(String branch) {
-        Commit currentCommit = branches.get(currentBranch);
-        if (untrackedMerge(currentCommit, branches.get(branch))) {
+        Commit currentCommit = getCommit(REFS.get(getCurrentBranch()));
+        Commit branchCommit = getCommit(REFS.get(branch));
+        if (untrackedMerge(currentCommit, branchCommit)) {
             System.out.println("There is an untracked file in the way; "
                     + "delete it, or add and commit it first.");
             return;
@@ -695,8 +1026,7 @@ public class Repository {
             System.out.println("You have uncommitted changes.");
             return;
         }
-        Commit splitCommit = getCommit(findSplit(branch, currentBranch));
-        Commit branchCommit = branches.get(branch);
+        Commit splitCommit = getCommit(findSplit(branch, getCurrentBranch()));
         String splitID = splitCommit.getID();
         String branchID = branchCommit.getID();
         String currentID = currentCommit.getID();
@@ -710,206 +1040,278 @@ public class Repository {
             System.out.println("Current branch fast-forwarded.");
             return;
         }
-        TreeMap<String, String> splitBlobs = splitCommit.getBlobs();
         TreeMap<String, String> currentBlobs = currentCommit.getBlobs();
-        TreeMap<String, String> branchBlobs = branchCommit.getBlobs();
-        for (Map.Entry<String, String> file : splitBlobs.entrySet()) {
-            String fHash = file.getValue();
+        // The result is worked out in full before anything is written: the
+        // blob each file changed by the merge ends up with, or null if it
+        // is removed. Every case acts on a file that differs between the
+        // split point and the given branch, so only those are visited, in
+        // one pass over the sorted diff of the two trees.
+        TreeMap<String, String> result = new TreeMap<>();
+        TreeMap<String, String[]> changed = Tree.diff(OBJECTS,
+                splitCommit.getTreeID(), branchCommit.getTreeID());
+        boolean[] fileConflict = new boolean[1];
+        for (Map.Entry<String, String[]> file : changed.entrySet()) {
             String fileName = file.getKey();
-            String bHash = branchBlobs.get(fileName);
+            String fHash = file.getValue()[0];
+            String bHash = file.getValue()[1];
             String cHash = currentBlobs.get(fileName);
-            // Case 1, Case 8
-            if (bHash != null && !fHash.equals(bHash)) {
-                if (fHash.equals(cHash)) {
-                    checkoutFile(fileName, branchID);
-                    addToStage(join(CWD, fileName));
-                }
-                if (cHash != null && !fHash.equals(cHash) && !bHash.equals(cHash)) {
-                    conflictedFile(fileName, currentCommit, branchCommit);
-                    conflict = true;
-                }
-            }
-            // 8. contents of one are changed and the other file is deleted, replace.
-            if (bHash == null && cHash != null && !fHash.equals(cHash)) {
-                conflictedFile(fileName, currentCommit, branchCommit);
-                conflict = true;
-            } else if (cHash == null && bHash != null && !fHash.equals(bHash)) {
-                conflictedFile(fileName, currentCommit, branchCommit);
-                conflict = true;
-            }
-            // Case 6
-            if (bHash == null && fHash.equals(cHash)) {
-                removeFile(fileName);
+            if (Objects.equals(cHash, bHash)) {
+                // Changed the same way in both branches
+                continue;
             }
-        }
-        // Case 5
-        for (Map.Entry<String, String> file : branchBlobs.entrySet()) {
-            String fileName = file.getKey();
-            String branchHash = file.getValue();
-            String splitHash = splitBlobs.get(fileName);
-            String cHash = currentBlobs.get(fileName);
-            if (cHash == null && splitHash == null) {
-                checkoutFile(fileName, branchID);
-                addToStage(join(CWD, fileName));
+            if (Objects.equals(cHash, fHash)) {
+                // Changed in the given branch only: cases 1, 5 and 6
+                result.put(fileName, bHash);
+                continue;
             }
-            // 8. File absent at the split point, different contents in branches.
-            if (splitHash == null && cHash != null && !cHash.equals(branchHash)) {
-                conflictedFile(fileName, currentCommit, branchCommit);
-                conflict = true;
+            // Changed differently in both: case 8, merged line by line
+            result.put(fileName, mergeFile(fHash, cHash, bHash, fileConflict));
+            conflict |= fileConflict[0];
+        }
+        // Then the working directory is updated and the commit written once.
+        TreeMap<String, String> writes = new TreeMap<>();
+        for (Map.Entry<String, String> file : result.entrySet()) {
+            if (file.getValue() != null) {
+                writes.put(file.getKey(), file.getValue());
+            } else {
+                restrictedDelete(join(CWD, file.getKey()));
+                INDEX.remove(file.getKey());
             }
         }
-        mergeCommitAll("Merged " + branch + " into " + currentBranch + ".", branch);
+        createFilesFromBlobs(writes);
+        mergeCommitAll("Merged " + branch + " into " + getCurrentBranch() + ".", branch, result);
         if (conflict) {
             System.out.println("Encountered a merge conflict.");
         }
-        save();
     }
 
     /**
      * Adds a remote to the remote directories list
      */
     public static void addRemote(String name, String dir) {
-        if (remotes.keySet().contains(name)) {
+        if (REFS.remote(name) != null) {
             System.out.println("A remote with that name already exists.");
             return;
         }
         dir.replace("/", java.io.File.separator);
-        remotes.put(name, dir);
-        save();
+        REFS.setRemote(name, dir);
     }
 
     /**
      * Remotes a specific remote from the remote directories list
      */
     public static void rmRemote(String name) {
-        if (!remotes.containsKey(name)) {
+        if (REFS.remote(name) == null) {
             System.out.println("A remote with that name does not exist.");
             return;
         }
-        remotes.remove(name);
-        save();
+        REFS.deleteRemote(name);
     }
 
-    public static ArrayList<Object> remoteLoad(String name) {
-        File remoteDir = join(remotes.get(name));
-        ArrayList<Object> save = readObject(join(remoteDir, "save"), ArrayList.class);
-        return save;
+    /**
+     * Returns the references of the remote with the given name.
+     */
+    private static Refs remoteRefs(String name) {
+        return REMOTE_REFS.computeIfAbsent(name, n -> new Refs(join(REFS.remote(n))));
     }
 
-    public static void remoteSave(String name, ArrayList<Object> data) {
-        File remoteDir = join(remotes.get(name));
-        writeObject(join(remoteDir, "save"), data);
+    /**
+     * Returns the object store of the remote with the given name.
+     */
+    private static ObjectStore remoteObjects(String name) {
+        return REMOTE_OBJECTS.computeIfAbsent(name,
+                n -> new ObjectStore(join(REFS.remote(n))));
     }
 
-    private static void saveRemoteCommit(Commit c, String name, String branch) {
-        ArrayList<Object> save = remoteLoad(name);
-        String id = c.getID();
-        File commit = join(remotes.get(name), "commits", id);
-        writeObject(commit, c);
-        // Updates pointer of branch to be new commit
-        TreeMap<String, Commit> remoteBranches = (TreeMap<String, Commit>) save.get(1);
-        remoteBranches.put(branch, c);
-        save.set(1, remoteBranches);
-        remoteSave(name, save);
+    /**
+     * Returns the message index of the remote with the given name.
+     */
+    private static MessageIndex remoteMessages(String name) {
+        return REMOTE_MESSAGES.computeIfAbsent(name,
+                n -> new MessageIndex(join(REFS.remote(n)), remoteObjects(n), remoteCommits(n)));
     }
 
-    private static Commit getRemoteCommit(String remoteName, String commitID) {
-        File returnCommit = join(remotes.get(remoteName), commitID);
-        if (!returnCommit.exists()) {
-            return null;
+    /**
+     * Returns the commit cache of the remote with the given name.
+     */
+    private static CommitCache remoteCommits(String name) {
+        return REMOTE_COMMITS.computeIfAbsent(name,
+                n -> new CommitCache(remoteObjects(n), COMMIT_CACHE_SIZE));
+    }
+
+    /**
+     * Returns the commit graph of the remote with the given name.
+     */
+    private static CommitGraph remoteGraph(String name) {
+        return REMOTE_GRAPHS.computeIfAbsent(name,
+                n -> new CommitGraph(join(REFS.remote(n)), remoteObjects(n)));
+    }
+
+    /**
+     * Copies commit C, with every tree and blob it refers to, from SOURCE to TARGET.
+     */
+    private static void copyCommit(ObjectStore source, ObjectStore target, Commit c) {
+        String tree = c.writtenTreeID();
+        if (tree != null) {
+            Tree.copy(source, target, tree);
+        } else {
+            for (String blob : c.getBlobs().values()) {
+                if (!target.hasBlob(blob)) {
+                    target.copyBlob(source, blob);
+                }
+            }
         }
-        return readObject(returnCommit, Commit.class);
+        target.writeCommit(c.getID(), source.readCommit(c.getID()));
+    }
+
+    /**
+     * Returns the commits reachable from commit TIP in GRAPH that store HAVE
+     * lacks, each after its parents. Both parents of merges are followed.
+     * The walk stops at commits HAVE holds, since commits are only ever
+     * stored after their parents, so a store holding a commit holds all of
+     * its history.
+     */
+    private static List<String> missingCommits(CommitGraph graph, String tip,
+                                               ObjectStore have) {
+        List<CommitGraph.Node> missing = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(tip);
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (!seen.add(id) || have.hasCommit(id)) {
+                continue;
+            }
+            CommitGraph.Node node = graph.get(id);
+            missing.add(node);
+            if (node.parent != null) {
+                pending.push(node.parent);
+            }
+            if (node.parent2 != null) {
+                pending.push(node.parent2);
+            }
+        }
+        // A commit's generation is higher than its parents'.
+        missing.sort(Comparator.comparingInt(n -> n.generation));
+        List<String> result = new ArrayList<>(missing.size());
+        for (CommitGraph.Node node : missing) {
+            result.add(node.id);
+        }
+        return result;
+    }
+
+    private static Commit getRemoteCommit(String remoteName, String commitID) {
+        return remoteCommits(remoteName).get(commitID);
     }
 
     /**
      * Pushes current repository commits to remote commit, given that it is in the
-     * history of the current commit.
+     * history of the current commit. Only the commits, trees and blobs the
+     * remote lacks are copied, and its branch is moved once at the end.
      */
     public static void push(String name, String branch) {
-        if (!remotes.containsKey(name)) {
+        if (REFS.remote(name) == null) {
             System.out.println("Remote directory not found.");
             return;
         }
-        File remoteRepo = join(remotes.get(name));
+        File remoteRepo = join(REFS.remote(name));
         if (!remoteRepo.exists()) {
             System.out.println("Remote directory not found.");
             return;
         }
-        boolean newBranch = false;
-        ArrayList<Object> save = remoteLoad(name);
-        TreeMap<String, Commit> remoteBranches = (TreeMap<String, Commit>) save.get(1);
-        if (!remoteBranches.containsKey(branch)) {
-            remoteBranches.put(branch, head);
-            newBranch = true;
-        }
-        // Remote Branch Head
-        Commit rBHead = remoteBranches.get(branch);
-        ArrayList<Commit> prevCommits = new ArrayList<>();
-        Commit current = head;
-        while (!current.getID().equals(rBHead.getID())) {
-            prevCommits.add(0, current);
-            current = getCommit(current.getParentID());
-            if (current == null && !newBranch) {
-                System.out.println("Please pull down remote changes before pushing.");
-                return;
-            }
-        }
-        for (Commit c : prevCommits) {
-            saveRemoteCommit(c, name, branch);
+        String headID = getHead().getID();
+        // Remote Branch Head, which must be in the history of the head
+        // commit: the merge base of the two is then the remote head itself.
+        String rBHead = remoteRefs(name).get(branch);
+        if (rBHead != null && (!OBJECTS.hasCommit(rBHead)
+                || !rBHead.equals(GRAPH.mergeBase(headID, rBHead)))) {
+            System.out.println("Please pull down remote changes before pushing.");
+            return;
         }
-        String remCurrentBranch = (String) save.get(2);
-        if (remCurrentBranch.equals(branch)) {
-            rBHead = head;
-            save = remoteLoad(name);
-            save.set(0, rBHead);
-            remoteSave(name, save);
+        ObjectStore remoteStore = remoteObjects(name);
+        for (String id : missingCommits(GRAPH, headID, remoteStore)) {
+            Commit c = getCommit(id);
+            copyCommit(OBJECTS, remoteStore, c);
+            remoteGraph(name).add(c);
+            remoteMessages(name).add(c);
         }
+        // The remote's HEAD names its branch, so it follows without being rewritten.
+        remoteRefs(name).set(branch, headID);
     }
 
+    /**
+     * Copies the commits of branch BRANCH of remote NAME that this
+     * repository lacks, with the trees and blobs it lacks, and points the
+     * branch NAME/BRANCH at its head.
+     */
     public static void fetch(String name, String branch) {
-        if (!remotes.containsKey(name)) {
+        if (REFS.remote(name) == null) {
             System.out.println("Remote directory not found.");
             return;
         }
-        File remoteRepo = join(remotes.get(name));
+        File remoteRepo = join(REFS.remote(name));
         if (!remoteRepo.exists()) {
             System.out.println("Remote directory not found.");
             return;
         }
-        ArrayList<Object> save = remoteLoad(name);
-        TreeMap<String, Commit> remoteBranches = (TreeMap<String, Commit>) save.get(1);
-        if (!remoteBranches.containsKey(branch)) {
+        String remoteHead = remoteRefs(name).get(branch);
+        if (remoteHead == null) {
             System.out.println("That remote does not have that branch.");
             return;
         }
-        File remoteBlobs = join(remotes.get(name), "blobs");
-        ArrayList<Commit> newCommits = new ArrayList<>();
-        // Remote Branch Head
-        Commit current = remoteBranches.get(branch);
-        while (current != null) {
-            String id = current.getID();
-            File commit = join(COMMIT_PATH, id);
-            if (!commit.exists()) {
-                writeObject(commit, current);
-                newCommits.add(0, current);
-            }
-            current = getRemoteCommit(name, current.getParentID());
+        ObjectStore remoteStore = remoteObjects(name);
+        for (String id : missingCommits(remoteGraph(name), remoteHead, OBJECTS)) {
+            Commit c = getRemoteCommit(name, id);
+            copyCommit(remoteStore, OBJECTS, c);
+            GRAPH.add(c);
+            MESSAGES.add(c);
         }
-        for (Commit c : newCommits) {
+        // Updates head commit of branch
+        REFS.set(name + "/" + branch, remoteHead);
+    }
+
+    /**
+     * Packs all loose objects and existing packs into a single new pack.
+     */
+    public static void repack() {
+        // Newest commits first, and the versions of each file next to each
+        // other in the same order, so deltas mostly run from new to old.
+        List<Commit> history = new ArrayList<>();
+        for (String id : OBJECTS.commitIDs()) {
+            history.add(getCommit(id));
+        }
+        history.sort((a, b) -> Integer.compare(b.getLength(), a.getLength()));
+        List<String> commitOrder = new ArrayList<>();
+        TreeMap<String, LinkedHashSet<String>> versions = new TreeMap<>();
+        for (Commit c : history) {
+            commitOrder.add(c.getID());
             for (Map.Entry<String, String> file : c.getBlobs().entrySet()) {
-                String hashCode = file.getValue();
-                File newBlob = join(BLOBS_PATH, hashCode);
-                writeContents(newBlob, readContents(join(remoteBlobs, hashCode)));
+                versions.computeIfAbsent(file.getKey(), k -> new LinkedHashSet<>())
+                        .add(file.getValue());
+            }
+        }
+        List<String> blobOrder = new ArrayList<>();
+        for (Set<String> ids : versions.values()) {
+            blobOrder.addAll(ids);
+        }
+        OBJECTS.repack(commitOrder, blobOrder);
+    }
+
+    /**
+     * Rewrites every commit still stored with Java serialization in the
+     * binary commit format, keeping its ID.
+     */
+    public static void migrate() {
+        for (String id : OBJECTS.commitIDs()) {
+            byte[] data = OBJECTS.readCommit(id);
+            if (!Commit.isEncoded(data)) {
+                OBJECTS.replaceCommit(id, Commit.decode(OBJECTS, id, data).encode());
             }
         }
-        // Updates head commit of branch
-        branches.put(name + "/" + branch, remoteBranches.get(branch));
-        save();
     }
 
     public static void pull(String name, String branch) {
         fetch(name, branch);
         merge(name + "/" + branch);
-        save();
     }
 }
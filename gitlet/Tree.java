@@ -0,0 +1,369 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * A content-addressed tree mapping file names to blob IDs. Gitlet only
+ * tracks plain files at the top of the working directory, so rather than
+ * following directories a tree is split by the SHA-1 of each name: a tree
+ * of at most MAX_LEAF files is a single leaf object listing them, and a
+ * larger one is an inner object with up to 16 subtrees, one for each value
+ * of the next hexadecimal digit of the names' hashes. The shape depends only
+ * on the set of files, so an unchanged subtree keeps its ID and is shared by
+ * every commit that contains it, and changing one file rewrites only the
+ * objects on its path.
+ *
+ * A leaf is encoded as the magic "GLTR", a version byte, a kind byte of 0,
+ * the number of files and then each file as a length-prefixed UTF-8 name and
+ * a 20-byte blob ID, sorted by name. An inner node has kind 1, the number of
+ * subtrees, and then each subtree's digit, file count and 20-byte tree ID.
+ *
+ * @author Daniel Zhao
+ */
+class Tree {
+
+    private static final byte[] MAGIC = "GLTR".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int LEAF = 0;
+    private static final int INNER = 1;
+    /**
+     * Largest number of files kept in a single leaf.
+     */
+    private static final int MAX_LEAF = 128;
+    /**
+     * Deepest level at which a tree may still be split.
+     */
+    private static final int MAX_DEPTH = 2 * Pack.ID_BYTES - 1;
+
+    /**
+     * Files of a leaf, or null for an inner node.
+     */
+    private final TreeMap<String, String> files;
+    /**
+     * Subtree IDs of an inner node by digit, null where there is none.
+     */
+    private final String[] children;
+    /**
+     * Number of files under each subtree of an inner node.
+     */
+    private final int[] counts;
+
+    private Tree(TreeMap<String, String> files) {
+        this.files = files;
+        this.children = null;
+        this.counts = null;
+    }
+
+    private Tree(String[] children, int[] counts) {
+        this.files = null;
+        this.children = children;
+        this.counts = counts;
+    }
+
+    /**
+     * Writes the tree holding FILES to STORE and returns its ID. Objects
+     * already in STORE are not written again.
+     */
+    static String write(ObjectStore store, Map<String, String> files) {
+        return build(store, new TreeMap<>(files), 0).id;
+    }
+
+    /**
+     * Writes the tree obtained from tree ROOT by applying CHANGES, which map
+     * file names to their new blob IDs or to null for removed files, and
+     * returns its ID. Only the objects on the paths of changed files are read
+     * and written.
+     */
+    static String update(ObjectStore store, String root, Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return root;
+        }
+        return update(store, root, new TreeMap<>(changes), 0).id;
+    }
+
+    /**
+     * Returns the files of tree ROOT.
+     */
+    static TreeMap<String, String> read(ObjectStore store, String root) {
+        TreeMap<String, String> result = new TreeMap<>();
+        collect(store, root, result);
+        return result;
+    }
+
+    /**
+     * Returns every file whose blob differs between trees A and B, mapped to
+     * its blob IDs in A and in B, with null where the file is absent.
+     * Subtrees with the same ID in both are skipped without being read.
+     */
+    static TreeMap<String, String[]> diff(ObjectStore store, String a, String b) {
+        TreeMap<String, String[]> result = new TreeMap<>();
+        diff(store, a, b, result);
+        return result;
+    }
+
+    /**
+     * Copies tree ROOT, its subtrees and the blobs they name from SOURCE into
+     * TARGET, skipping every subtree TARGET already has.
+     */
+    static void copy(ObjectStore source, ObjectStore target, String root) {
+        if (target.hasTree(root)) {
+            return;
+        }
+        Tree t = load(source, root);
+        if (t.files != null) {
+            for (String blob : t.files.values()) {
+                if (!target.hasBlob(blob)) {
+                    target.copyBlob(source, blob);
+                }
+            }
+        } else {
+            for (String child : t.children) {
+                if (child != null) {
+                    copy(source, target, child);
+                }
+            }
+        }
+        // Written last, so a tree present in TARGET always has everything under it.
+        target.writeTree(root, source.readTree(root));
+    }
+
+    /**
+     * A written subtree: its ID and the number of files under it.
+     */
+    private static class Ref {
+        private final String id;
+        private final int count;
+
+        Ref(String id, int count) {
+            this.id = id;
+            this.count = count;
+        }
+    }
+
+    private static Ref build(ObjectStore store, SortedMap<String, String> files, int depth) {
+        if (files.size() <= MAX_LEAF || depth >= MAX_DEPTH) {
+            return save(store, new Tree(new TreeMap<>(files)), files.size());
+        }
+        List<TreeMap<String, String>> groups = split(files, depth);
+        String[] children = new String[16];
+        int[] counts = new int[16];
+        for (int d = 0; d < 16; d += 1) {
+            if (!groups.get(d).isEmpty()) {
+                Ref child = build(store, groups.get(d), depth + 1);
+                children[d] = child.id;
+                counts[d] = child.count;
+            }
+        }
+        return save(store, new Tree(children, counts), files.size());
+    }
+
+    private static Ref update(ObjectStore store, String id, TreeMap<String, String> changes,
+                              int depth) {
+        if (id == null) {
+            changes.values().removeIf(v -> v == null);
+            return build(store, changes, depth);
+        }
+        Tree t = load(store, id);
+        if (t.files != null) {
+            TreeMap<String, String> files = new TreeMap<>(t.files);
+            apply(files, changes);
+            return build(store, files, depth);
+        }
+        List<TreeMap<String, String>> groups = split(changes, depth);
+        String[] children = t.children.clone();
+        int[] counts = t.counts.clone();
+        int total = 0;
+        for (int d = 0; d < 16; d += 1) {
+            if (!groups.get(d).isEmpty()) {
+                Ref child = update(store, children[d], groups.get(d), depth + 1);
+                children[d] = child.count == 0 ? null : child.id;
+                counts[d] = child.count;
+            }
+            total += counts[d];
+        }
+        if (total <= MAX_LEAF) {
+            // Shrunk enough to fold back into a single leaf.
+            TreeMap<String, String> files = new TreeMap<>();
+            for (String child : children) {
+                if (child != null) {
+                    collect(store, child, files);
+                }
+            }
+            return build(store, files, depth);
+        }
+        return save(store, new Tree(children, counts), total);
+    }
+
+    private static void apply(TreeMap<String, String> files, Map<String, String> changes) {
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                files.remove(change.getKey());
+            } else {
+                files.put(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    private static void collect(ObjectStore store, String id, TreeMap<String, String> result) {
+        Tree t = load(store, id);
+        if (t.files != null) {
+            result.putAll(t.files);
+        } else {
+            for (String child : t.children) {
+                if (child != null) {
+                    collect(store, child, result);
+                }
+            }
+        }
+    }
+
+    private static void diff(ObjectStore store, String a, String b,
+                             TreeMap<String, String[]> result) {
+        if (a != null && a.equals(b)) {
+            return;
+        }
+        Tree ta = a == null ? null : load(store, a);
+        Tree tb = b == null ? null : load(store, b);
+        boolean innerA = ta != null && ta.children != null;
+        boolean innerB = tb != null && tb.children != null;
+        if ((innerA || ta == null) && (innerB || tb == null) && (innerA || innerB)) {
+            for (int d = 0; d < 16; d += 1) {
+                String ca = innerA ? ta.children[d] : null;
+                String cb = innerB ? tb.children[d] : null;
+                if (ca != null || cb != null) {
+                    diff(store, ca, cb, result);
+                }
+            }
+            return;
+        }
+        TreeMap<String, String> fa = new TreeMap<>();
+        TreeMap<String, String> fb = new TreeMap<>();
+        if (a != null) {
+            collect(store, a, fa);
+        }
+        if (b != null) {
+            collect(store, b, fb);
+        }
+        for (Map.Entry<String, String> e : fa.entrySet()) {
+            String other = fb.get(e.getKey());
+            if (!e.getValue().equals(other)) {
+                result.put(e.getKey(), new String[] {e.getValue(), other});
+            }
+        }
+        for (Map.Entry<String, String> e : fb.entrySet()) {
+            if (!fa.containsKey(e.getKey())) {
+                result.put(e.getKey(), new String[] {null, e.getValue()});
+            }
+        }
+    }
+
+    /**
+     * Splits FILES into 16 groups by the hexadecimal digit at DEPTH of the
+     * hash of each name.
+     */
+    private static List<TreeMap<String, String>> split(SortedMap<String, String> files,
+                                                       int depth) {
+        List<TreeMap<String, String>> groups = new ArrayList<>(16);
+        for (int d = 0; d < 16; d += 1) {
+            groups.add(new TreeMap<>());
+        }
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            int digit = Character.digit(sha1(e.getKey()).charAt(depth), 16);
+            groups.get(digit).put(e.getKey(), e.getValue());
+        }
+        return groups;
+    }
+
+    private static Ref save(ObjectStore store, Tree t, int count) {
+        byte[] data = t.encode();
+        String id = sha1(data);
+        if (!store.hasTree(id)) {
+            store.writeTree(id, data);
+        }
+        return new Ref(id, count);
+    }
+
+    private static Tree load(ObjectStore store, String id) {
+        byte[] data = store.readTree(id);
+        if (data == null) {
+            throw error("Missing tree %s.", id);
+        }
+        return decode(data);
+    }
+
+    private byte[] encode() {
+        int size = MAGIC.length + 2 + 4;
+        List<byte[]> names = new ArrayList<>();
+        if (files != null) {
+            for (String name : files.keySet()) {
+                byte[] n = name.getBytes(StandardCharsets.UTF_8);
+                names.add(n);
+                size += 2 + n.length + Pack.ID_BYTES;
+            }
+        } else {
+            size += 16 * (1 + 4 + Pack.ID_BYTES);
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC).put((byte) VERSION);
+        if (files != null) {
+            out.put((byte) LEAF).putInt(files.size());
+            int i = 0;
+            for (String blob : files.values()) {
+                byte[] n = names.get(i++);
+                out.putShort((short) n.length).put(n).put(Pack.fromHex(blob));
+            }
+        } else {
+            int n = 0;
+            for (String child : children) {
+                n += child == null ? 0 : 1;
+            }
+            out.put((byte) INNER).putInt(n);
+            for (int d = 0; d < 16; d += 1) {
+                if (children[d] != null) {
+                    out.put((byte) d).putInt(counts[d]).put(Pack.fromHex(children[d]));
+                }
+            }
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static Tree decode(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || in.get() > VERSION) {
+            throw error("Unrecognized tree object.");
+        }
+        int kind = in.get();
+        int n = in.getInt();
+        if (kind == LEAF) {
+            TreeMap<String, String> files = new TreeMap<>();
+            for (int i = 0; i < n; i += 1) {
+                int len = in.getShort() & 0xffff;
+                String name = new String(data, in.position(), len, StandardCharsets.UTF_8);
+                in.position(in.position() + len);
+                files.put(name, Pack.toHex(data, in.position()));
+                in.position(in.position() + Pack.ID_BYTES);
+            }
+            return new Tree(files);
+        }
+        String[] children = new String[16];
+        int[] counts = new int[16];
+        for (int i = 0; i < n; i += 1) {
+            int d = in.get();
+            counts[d] = in.getInt();
+            children[d] = Pack.toHex(data, in.position());
+            in.position(in.position() + Pack.ID_BYTES);
+        }
+        return new Tree(children, counts);
+    }
+}
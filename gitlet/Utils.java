@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,14 +10,21 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Formatter;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /** Assorted utilities.
@@ -157,6 +165,40 @@ class Utils {
         writeContents(file, serialize(obj));
     }
 
+    /** Flush the contents of FILES to stable storage.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static void sync(Collection<File> files) {
+        try {
+            for (File file : files) {
+                try (FileChannel ch = FileChannel.open(file.toPath(),
+                        StandardOpenOption.READ)) {
+                    ch.force(true);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Flush the directories holding FILES to stable storage, so that
+     *  files created, renamed or deleted there survive a crash.  Each
+     *  directory is flushed once however many FILES it holds.  Platforms
+     *  that cannot open a directory skip this. */
+    static void syncDirectories(Collection<File> files) {
+        Set<File> dirs = new LinkedHashSet<>();
+        for (File file : files) {
+            dirs.add(file.getAbsoluteFile().getParentFile());
+        }
+        for (File dir : dirs) {
+            try (FileChannel ch = FileChannel.open(dir.toPath(),
+                    StandardOpenOption.READ)) {
+                ch.force(true);
+            } catch (IOException excp) {
+                /* Not supported here. */
+            }
+        }
+    }
+
     /* DIRECTORIES */
 
     /** Filter out all but plain files. */
@@ -220,6 +262,61 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from DATA, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] data,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(data));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+
+
+    /* ENVIRONMENT */
+
+    /** The environment variables that change how a command runs. A Gitlet
+     *  daemon runs each command with the values its client has. */
+    static final List<String> COMMAND_ENV = List.of("GITLET_CHECKOUT_JOBS",
+            "GITLET_CHECKOUT_MODE", "GITLET_STATS", "GITLET_TRACE");
+
+    /** Values of the variables of COMMAND_ENV for the command being run, or
+     *  null to use the environment of this process. */
+    private static volatile Map<String, String> commandEnv;
+
+    /** Return the value of environment variable NAME for the command being
+     *  run, or null if it is not set. */
+    static String getenv(String name) {
+        Map<String, String> env = commandEnv;
+        return env == null ? System.getenv(name) : env.get(name);
+    }
+
+    /** Name under which a daemon is sent the time zone of its client, as
+     *  the client resolved it from TZ or the system settings. */
+    static final String COMMAND_ZONE = "TZ";
+
+    /** Return the time zone of the command being run: the one this process
+     *  started in, or that of the client when a daemon runs it. */
+    static ZoneId zone() {
+        Map<String, String> env = commandEnv;
+        String id = env == null ? null : env.get(COMMAND_ZONE);
+        return id == null ? ZoneId.systemDefault() : ZoneId.of(id);
+    }
+
+    /** Run the commands that follow with the variables of COMMAND_ENV set
+     *  as in ENV, and in the time zone ENV holds under COMMAND_ZONE, or as
+     *  in the environment of this process if ENV is null. */
+    static void setCommandEnv(Map<String, String> env) {
+        commandEnv = env;
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */
@@ -230,6 +327,16 @@ class Utils {
         return new GitletException(String.format(msg, args));
     }
 
+    /** If timings are reported, as asked by setting GITLET_TRACE in the
+     *  environment, prints to standard error how long WHAT took since
+     *  START, a value of System.nanoTime. */
+    static void trace(String what, long start) {
+        if (getenv("GITLET_TRACE") != null) {
+            System.err.printf("trace: %-16s %8.3f ms%n", what,
+                    (System.nanoTime() - start) / 1e6);
+        }
+    }
+
     /** Print a message composed from MSG and ARGS as for the String.format
      *  method, followed by a newline. */
     static void message(String msg, Object... args) {
@@ -76,6 +76,10 @@ The instructions each have one of the following forms:
           Defines the variable VAR to have the literal value VALUE.  VALUE is
           taken to be a raw Python string (as in r"VALUE").  Substitutions are
           first applied to VALUE.
+   V VAR "VALUE"
+          Sets the environment variable VAR to VALUE for the gitlet commands
+          in the rest of this test, or unsets it if VALUE is empty.
+          Substitutions are first applied to VALUE.
 
 For each TEST.in, reports at most one error.  Without the --show option,
 simply indicates tests passed and failed.  If N is postive, also prints details
@@ -114,7 +118,7 @@ def Group(n):
 
 def contents(filename):
     try:
-        with open(filename) as inp:
+        with open(filename, errors="surrogateescape") as inp:
             return inp.read()
     except FileNotFoundError:
         return None
@@ -156,7 +160,7 @@ def doCopy(dest, src, dir):
     except OSError:
         raise ValueError("file {} could not be copied to {}".format(src, dest))
 
-def doExecute(cmnd, dir, timeout, line_num):
+def doExecute(cmnd, dir, timeout, line_num, env=None):
     here = getcwd()
     out = ""
     try:
@@ -176,7 +180,7 @@ def doExecute(cmnd, dir, timeout, line_num):
                 full_cmnd = "{} {} {} {}".format(JAVA_COMMAND, JVM_OPTIONS, GITLET_CLASS, cmnd)
                 timeout, skip_first_line = None, True
 
-        out = doCommand(full_cmnd, timeout, skip_first_line)
+        out = doCommand(full_cmnd, timeout, skip_first_line, env)
         return "OK", out
     except CalledProcessError as excp:
         return ("java gitlet.Main exited with code {}".format(excp.args[0]),
@@ -186,9 +190,10 @@ def doExecute(cmnd, dir, timeout, line_num):
     finally:
         chdir(here)
 
-def doCommand(full_cmnd, timeout, skip_first_line=False):
+def doCommand(full_cmnd, timeout, skip_first_line=False, env=None):
     out = check_output(full_cmnd, shell=True, universal_newlines=True,
-                        stdin=DEVNULL, stderr=STDOUT, timeout=timeout)
+                        stdin=DEVNULL, stderr=STDOUT, timeout=timeout,
+                        env=env)
     if skip_first_line:
         out = out.split("\n", 1)[1]
 
@@ -281,6 +286,7 @@ def doTest(test):
 
     timeout = TIMEOUT
     defns = {}
+    env = dict(environ)
 
     def do_substs(L):
         c = 0
@@ -351,7 +357,7 @@ def doTest(test):
                         is_regexp = Group(1)
                         break
                     expected.append(do_substs(L))
-                msg, out = doExecute(cmnd, cdir, timeout, line_num)
+                msg, out = doExecute(cmnd, cdir, timeout, line_num, env)
                 if verbose:
                     if out:
                         print(re.sub(r'(?m)^', '- ', chop_nl(out)))
@@ -382,6 +388,11 @@ def doTest(test):
                     return False
             elif Match(r'(?s)D\s*([a-zA-Z_][a-zA-Z_0-9]*)\s*"(.*)"\s*$', line):
                 defns[Group(1)] = Group(2)
+            elif Match(r'(?s)V\s*([a-zA-Z_][a-zA-Z_0-9]*)\s*"(.*)"\s*$', line):
+                if Group(2) == "":
+                    env.pop(Group(1), None)
+                else:
+                    env[Group(1)] = Group(2)
             else:
                 raise ValueError("bad test line at {}".format(line_num))
     finally: